@@ -0,0 +1,149 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that the playback dispatch path does not allocate.
+ *
+ * <p>
+ * Records a loop of notes and controller changes, plays it against a counting
+ * output port, and measures the bytes allocated by the scheduler thread with
+ * <code>com.sun.management.ThreadMXBean#getThreadAllocatedBytes</code> over a
+ * number of cycles after warmup.  Garbage collections during the measurement
+ * are reported as well.  Exits with status 1 if any bytes were allocated.
+ * </p>
+ *
+ * <pre>
+ * ./run-bench.sh AllocationCheck [cycles]
+ * </pre>
+ */
+public final class AllocationCheck
+{
+    /** Loop length, in milliseconds. */
+    private static final long LOOP_LENGTH = 20L;
+
+    /** Number of note and controller events per cycle. */
+    private static final int EVENTS = 192;
+
+
+    /**
+     * Private no-arg constructor.
+     */
+    private AllocationCheck()
+    {
+        // empty
+    }
+
+
+    /**
+     * Return the total number of garbage collections.
+     *
+     * @return the total number of garbage collections
+     */
+    private static long collectionCount()
+    {
+        long count = 0L;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            count += Math.max(0L, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Return the total garbage collection time, in milliseconds.
+     *
+     * @return the total garbage collection time, in milliseconds
+     */
+    private static long collectionTime()
+    {
+        long time = 0L;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            time += Math.max(0L, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args command line arguments
+     * @throws Exception if an error occurs
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        int cycles = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Scheduler scheduler = new Scheduler();
+        scheduler.start();
+        CountingOutputPort output = new CountingOutputPort();
+        OutputBatch batch = new OutputBatch(output);
+        scheduler.addBatch(batch);
+        Loop loop = new Loop(batch, new Track(output, 0), scheduler, scheduler.now(), null);
+        for (int i = 0; i < EVENTS / 3; i++)
+        {
+            loop.record(0x90, 60 + (i % 12), 100);
+            loop.record(0xB0, 1, i);
+            loop.record(0x80, 60 + (i % 12), 0);
+        }
+        Thread.sleep(LOOP_LENGTH);
+        loop.stop();
+        loop.play();
+
+        // warm up
+        Thread.sleep(cycles * LOOP_LENGTH);
+
+        long id = scheduler.getThread().getId();
+        long countBefore = output.getCount();
+        long gcCountBefore = collectionCount();
+        long gcTimeBefore = collectionTime();
+        long bytesBefore = threads.getThreadAllocatedBytes(id);
+
+        Thread.sleep(cycles * LOOP_LENGTH);
+
+        long bytesAfter = threads.getThreadAllocatedBytes(id);
+        long countAfter = output.getCount();
+        long gcCount = collectionCount() - gcCountBefore;
+        long gcTime = collectionTime() - gcTimeBefore;
+
+        loop.stop();
+        scheduler.shutdown();
+
+        long bytes = bytesAfter - bytesBefore;
+        double measuredCycles = (countAfter - countBefore) / (double) EVENTS;
+        System.out.println("cycles           " + String.format("%.1f", measuredCycles));
+        System.out.println("events           " + (countAfter - countBefore));
+        System.out.println("bytes allocated  " + bytes);
+        System.out.println("bytes per cycle  " + String.format("%.2f", bytes / Math.max(1.0d, measuredCycles)));
+        System.out.println("gc count         " + gcCount);
+        System.out.println("gc time ms       " + gcTime);
+        System.exit((bytes == 0L) ? 0 : 1);
+    }
+}
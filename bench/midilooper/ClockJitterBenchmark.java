@@ -0,0 +1,174 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.Random;
+
+/**
+ * Clock jitter benchmark.
+ *
+ * <p>
+ * Feeds a simulated MIDI clock source, with Gaussian jitter on the arrival
+ * time of each timing clock, to a clock follower and compares the raw and
+ * filtered tick times with the ideal ones.  Runs a steady tempo and then a
+ * tempo step, and reports the RMS and maximum phase error, the standard
+ * deviation of the estimated tempo, and the cost of each timing clock, away
+ * from the start and the step.  For the step, also reports the transient: the
+ * maximum filtered phase error after the step, and the time until the filtered
+ * phase error, averaged over a beat to average out the jitter, is back for good
+ * within twice its maximum before the step.
+ * </p>
+ *
+ * <pre>
+ * ./run-bench.sh ClockJitterBenchmark [bpm] [jitter ms] [ticks]
+ * </pre>
+ */
+public final class ClockJitterBenchmark
+{
+    /** Ticks skipped before measuring, to let the delay-locked loop settle. */
+    private static final int SETTLE = 480;
+
+    /** Timing clocks per beat. */
+    private static final int BEAT = 24;
+
+    /** Least re-lock tolerance, in nanoseconds. */
+    private static final double MIN_TOLERANCE = 0.1e6d;
+
+
+    /**
+     * Private no-arg constructor.
+     */
+    private ClockJitterBenchmark()
+    {
+        // empty
+    }
+
+
+    /**
+     * Run the specified scenario and print the results.
+     *
+     * @param name scenario name
+     * @param bpm initial tempo, in beats per minute
+     * @param stepBpm tempo after the midpoint, in beats per minute
+     * @param jitter standard deviation of the jitter, in nanoseconds
+     * @param ticks number of ticks
+     */
+    private static void run(final String name, final double bpm, final double stepBpm, final double jitter, final int ticks)
+    {
+        Random random = new Random(42L);
+        ClockFollower follower = new ClockFollower(0L, null);
+        follower.start(0L);
+
+        double ideal = 1.0e9d;
+        double rawSquares = 0.0d;
+        double rawMax = 0.0d;
+        double filteredSquares = 0.0d;
+        double filteredMax = 0.0d;
+        double tempoSum = 0.0d;
+        double tempoSquares = 0.0d;
+        int measured = 0;
+        long elapsed = 0L;
+        int step = ticks / 2;
+        double tolerance = MIN_TOLERANCE;
+        double[] errors = new double[BEAT];
+        double beatError = 0.0d;
+        double beatMax = 0.0d;
+        double stepIdeal = 0.0d;
+        double stepMax = 0.0d;
+        double unlocked = 0.0d;
+        boolean locked = true;
+        for (int i = 0; i < ticks; i++)
+        {
+            double tempo = (i < step) ? bpm : stepBpm;
+            ideal += 60.0e9d / (tempo * 24.0d);
+            long arrival = (long) (ideal + random.nextGaussian() * jitter);
+
+            long before = System.nanoTime();
+            follower.clock(arrival);
+            elapsed += System.nanoTime() - before;
+
+            double error = follower.getTickTime() - ideal;
+            double filtered = Math.abs(error);
+            beatError += (error - errors[i % BEAT]) / BEAT;
+            errors[i % BEAT] = error;
+            if ((i >= SETTLE) && (i < step))
+            {
+                beatMax = Math.max(beatMax, Math.abs(beatError));
+            }
+            if (i == step)
+            {
+                tolerance = Math.max(2.0d * beatMax, MIN_TOLERANCE);
+                stepIdeal = ideal;
+            }
+            if (i >= step)
+            {
+                stepMax = Math.max(stepMax, filtered);
+                locked = Math.abs(beatError) <= tolerance;
+                if (!locked)
+                {
+                    unlocked = ideal - stepIdeal;
+                }
+            }
+
+            boolean settled = (i >= SETTLE) && (Math.abs(i - step) >= SETTLE);
+            if (settled)
+            {
+                double raw = Math.abs(arrival - ideal);
+                rawSquares += raw * raw;
+                rawMax = Math.max(rawMax, raw);
+                filteredSquares += filtered * filtered;
+                filteredMax = Math.max(filteredMax, filtered);
+                double tempoError = follower.getTempo() - tempo;
+                tempoSum += tempoError;
+                tempoSquares += tempoError * tempoError;
+                measured++;
+            }
+        }
+        double tempoMean = tempoSum / measured;
+        System.out.println(name);
+        System.out.println(String.format("  raw phase error       rms %8.3f ms  max %8.3f ms", Math.sqrt(rawSquares / measured) / 1.0e6d, rawMax / 1.0e6d));
+        System.out.println(String.format("  filtered phase error  rms %8.3f ms  max %8.3f ms", Math.sqrt(filteredSquares / measured) / 1.0e6d, filteredMax / 1.0e6d));
+        System.out.println(String.format("  tempo error           mean %7.4f bpm  sd %7.4f bpm", tempoMean, Math.sqrt(tempoSquares / measured - tempoMean * tempoMean)));
+        if (stepBpm != bpm)
+        {
+            System.out.println(String.format("  step phase error      max %8.3f ms  tolerance %8.3f ms", stepMax / 1.0e6d, tolerance / 1.0e6d));
+            System.out.println(locked ? String.format("  step re-lock          %8.1f ms", unlocked / 1.0e6d) : "  step re-lock          not re-locked");
+        }
+        System.out.println(String.format("  cost per clock        %8.1f ns", elapsed / (double) ticks));
+    }
+
+    /**
+     * Main.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args)
+    {
+        double bpm = (args.length > 0) ? Double.parseDouble(args[0]) : 120.0d;
+        double jitter = ((args.length > 1) ? Double.parseDouble(args[1]) : 1.0d) * 1.0e6d;
+        int ticks = (args.length > 2) ? Integer.parseInt(args[2]) : 24 * 4 * 256;
+
+        run("steady " + bpm + " bpm", bpm, bpm, jitter, ticks);
+        run("step " + bpm + " to " + (bpm + 10.0d) + " bpm", bpm, bpm + 10.0d, jitter, ticks);
+    }
+}
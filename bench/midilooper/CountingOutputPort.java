@@ -0,0 +1,73 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Output port that counts and discards every message.
+ */
+final class CountingOutputPort implements OutputPort
+{
+    /** Number of messages sent, written only by the sending thread. */
+    private volatile long count;
+
+
+    /**
+     * Return the number of messages sent.
+     *
+     * @return the number of messages sent
+     */
+    long getCount()
+    {
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    public void sendNoteOn(final int channel, final int pitch, final int velocity)
+    {
+        count++;
+    }
+
+    /** {@inheritDoc} */
+    public void sendNoteOff(final int channel, final int pitch, final int velocity)
+    {
+        count++;
+    }
+
+    /** {@inheritDoc} */
+    public void sendController(final int channel, final int controller, final int value)
+    {
+        count++;
+    }
+
+    /** {@inheritDoc} */
+    public void sendProgramChange(final int channel, final int program)
+    {
+        count++;
+    }
+
+    /** {@inheritDoc} */
+    public void sendSysex(final byte[] data, final int offset, final int length)
+    {
+        count++;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Looper benchmark.
+ *
+ * <p>
+ * Measures the cost of recording events through the input dispatcher,
+ * the cost per event of dispatching a loop, the cost per event of the playback
+ * scheduler with 1, 8 and 64 playing loops, and the heap footprint per recorded
+ * event.  Every loop plays to a counting output port that discards its messages.
+ * Each measurement is repeated after a warm up round, and the best and mean
+ * rounds are reported.
+ * </p>
+ *
+ * <pre>
+ * ./run-bench.sh LooperBenchmark [rounds]
+ * </pre>
+ */
+public final class LooperBenchmark
+{
+    /** Number of events recorded per round. */
+    private static final int RECORDED = 1000000;
+
+    /** Number of events in each played loop. */
+    private static final int EVENTS = 256;
+
+    /** Number of dispatches per round. */
+    private static final int DISPATCHES = 10000000;
+
+    /** Length of each scheduler round, in milliseconds. */
+    private static final long SCHEDULER_ROUND = 500L;
+
+    /** Time base on which every position is already due, so the scheduler runs flat out. */
+    private static final TimeBase ALWAYS_DUE = new TimeBase()
+        {
+            /** {@inheritDoc} */
+            public long now()
+            {
+                return System.nanoTime();
+            }
+
+            /** {@inheritDoc} */
+            public long toNanoTime(final long position)
+            {
+                return 0L;
+            }
+        };
+
+    /** Sink for results, so the measured work is not optimized away. */
+    private static long sink;
+
+
+    /**
+     * Private no-arg constructor.
+     */
+    private LooperBenchmark()
+    {
+        // empty
+    }
+
+
+    /**
+     * Measured operation.
+     */
+    private interface Round
+    {
+
+        /**
+         * Run one round.
+         *
+         * @return number of operations in the round
+         * @throws Exception if an error occurs
+         */
+        long run() throws Exception;
+    }
+
+
+    /**
+     * Run the specified round after a warm up round and print the cost per operation.
+     *
+     * @param name measurement name
+     * @param rounds number of measured rounds
+     * @param round round
+     * @throws Exception if an error occurs
+     */
+    private static void measure(final String name, final int rounds, final Round round) throws Exception
+    {
+        round.run();
+        double best = Double.MAX_VALUE;
+        double total = 0.0d;
+        for (int i = 0; i < rounds; i++)
+        {
+            long before = System.nanoTime();
+            long operations = round.run();
+            double cost = (System.nanoTime() - before) / (double) operations;
+            best = Math.min(best, cost);
+            total += cost;
+        }
+        System.out.println(String.format("%-28s best %8.1f ns  mean %8.1f ns", name, best, total / rounds));
+    }
+
+    /**
+     * Create a new loop with the specified number of events, evenly spaced over one second.
+     *
+     * @param output output port
+     * @param scheduler playback scheduler
+     * @param events number of events
+     * @return a new loop with the specified number of events
+     */
+    private static Loop createLoop(final OutputPort output, final Scheduler scheduler, final int events)
+    {
+        EventBuffer buffer = new EventBuffer();
+        long length = 1000000000L;
+        for (int i = 0; i < events; i++)
+        {
+            buffer.add(i * (length / events), (i % 2 == 0) ? 0x90 : 0x80, 60 + (i / 2) % 12, (i % 2 == 0) ? 100 : 0);
+        }
+        return new Loop(output, new Track(output, 0), scheduler, buffer, 0L, length);
+    }
+
+    /**
+     * Measure recording events through the input dispatcher.
+     *
+     * @param rounds number of measured rounds
+     * @throws Exception if an error occurs
+     */
+    private static void ingest(final int rounds) throws Exception
+    {
+        final Scheduler scheduler = new Scheduler();
+        measure("ingest per event", rounds, new Round()
+            {
+                /** {@inheritDoc} */
+                public long run()
+                {
+                    CountingOutputPort output = new CountingOutputPort();
+                    Track track = new Track(output, 0);
+                    Loop loop = new Loop(output, track, scheduler, scheduler.now(), null);
+                    InputDispatcher dispatcher = new InputDispatcher(scheduler, track);
+                    dispatcher.setRecording(loop);
+                    for (int i = 0; i < RECORDED; i++)
+                    {
+                        dispatcher.shortMessageReceived(0xB0, 1, i & 0x7F);
+                    }
+                    sink += loop.getEvents().size();
+                    return RECORDED;
+                }
+            });
+    }
+
+    /**
+     * Measure dispatching a loop, calling it directly rather than from the scheduler.
+     *
+     * @param rounds number of measured rounds
+     * @throws Exception if an error occurs
+     */
+    private static void dispatch(final int rounds) throws Exception
+    {
+        final CountingOutputPort output = new CountingOutputPort();
+        final Loop loop = createLoop(output, new Scheduler(), EVENTS);
+        loop.play(0L);
+        measure("dispatch per event", rounds, new Round()
+            {
+                /** {@inheritDoc} */
+                public long run()
+                {
+                    long due = 0L;
+                    for (int i = 0; i < DISPATCHES; i++)
+                    {
+                        due = loop.dispatch(due);
+                    }
+                    sink += due + output.getCount();
+                    return DISPATCHES;
+                }
+            });
+    }
+
+    /**
+     * Measure the scheduler dispatching the specified number of playing loops, with every event already due.
+     *
+     * @param loops number of playing loops
+     * @param rounds number of measured rounds
+     * @throws Exception if an error occurs
+     */
+    private static void schedule(final int loops, final int rounds) throws Exception
+    {
+        final CountingOutputPort output = new CountingOutputPort();
+        final Scheduler scheduler = new Scheduler();
+        scheduler.setTimeBase(ALWAYS_DUE);
+        for (int i = 0; i < loops; i++)
+        {
+            createLoop(output, scheduler, EVENTS).play(0L);
+        }
+        scheduler.start();
+        measure("schedule " + loops + " loops per event", rounds, new Round()
+            {
+                /** {@inheritDoc} */
+                public long run() throws Exception
+                {
+                    long before = output.getCount();
+                    Thread.sleep(SCHEDULER_ROUND);
+                    return Math.max(1L, output.getCount() - before);
+                }
+            });
+        scheduler.shutdown();
+    }
+
+    /**
+     * Measure the heap footprint per recorded event.
+     */
+    private static void footprint()
+    {
+        Scheduler scheduler = new Scheduler();
+        Runtime runtime = Runtime.getRuntime();
+        long before = usedMemory(runtime);
+        CountingOutputPort output = new CountingOutputPort();
+        Loop loop = new Loop(output, new Track(output, 0), scheduler, scheduler.now(), null);
+        for (int i = 0; i < RECORDED; i++)
+        {
+            loop.record(0xB0, 1, i & 0x7F);
+        }
+        long after = usedMemory(runtime);
+        sink += loop.getEvents().size();
+        System.out.println(String.format("%-28s %8.1f bytes", "footprint per event", (after - before) / (double) RECORDED));
+    }
+
+    /**
+     * Return the heap in use after a garbage collection.
+     *
+     * @param runtime runtime
+     * @return the heap in use after a garbage collection, in bytes
+     */
+    private static long usedMemory(final Runtime runtime)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Main.
+     *
+     * @param args command line arguments
+     * @throws Exception if an error occurs
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+
+        ingest(rounds);
+        dispatch(rounds);
+        schedule(1, rounds);
+        schedule(8, rounds);
+        schedule(64, rounds);
+        footprint();
+        if (sink == 42L)
+        {
+            System.out.println();
+        }
+    }
+}
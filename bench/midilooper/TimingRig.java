@@ -0,0 +1,275 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.Arrays;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timing accuracy rig.
+ *
+ * <p>
+ * Records a synthetic performance, one second of sixteenth notes with a
+ * controller change on every beat, into a MIDI looper through a loopback
+ * input port, then lets the loop play for a number of cycles into an output
+ * port that timestamps every message.  Each message is compared with the
+ * time its event is due on the timeline of the loop, and the rig reports the
+ * distribution of lateness and, per cycle, the drift of the median lateness
+ * from the first cycle.  Exits with status 1 if the median lateness or the
+ * drift exceeds its threshold, or if any message is missing or out of order,
+ * so it can also run as a regression check.  A few hundred messages are too
+ * few for stable upper percentiles: the 99th percentile is little more than
+ * the third worst message, and on a desktop scheduler it varies from run to
+ * run between one and twenty milliseconds, so it, the 90th percentile and the
+ * maximum are reported but not checked.
+ * </p>
+ *
+ * <pre>
+ * ./run-bench.sh TimingRig [cycles] [p50 threshold ms] [drift threshold ms]
+ * </pre>
+ */
+public final class TimingRig
+{
+    /** Length of the performance, in nanoseconds. */
+    private static final long LENGTH = 1000000000L;
+
+    /** Number of steps in the performance. */
+    private static final int STEPS = 16;
+
+    /** Note length, in nanoseconds. */
+    private static final long NOTE_LENGTH = 30000000L;
+
+
+    /**
+     * Private no-arg constructor.
+     */
+    private TimingRig()
+    {
+        // empty
+    }
+
+
+    /**
+     * Output port that records the <code>System.nanoTime()</code> and packed message of every message.
+     */
+    private static final class TimestampingOutputPort implements OutputPort
+    {
+        /** Timestamps. */
+        private final long[] times;
+
+        /** Packed messages. */
+        private final int[] messages;
+
+        /** Number of messages recorded, written only by the sending thread. */
+        private volatile int size;
+
+
+        /**
+         * Create a new timestamping output port with the specified capacity.
+         *
+         * @param capacity capacity
+         */
+        TimestampingOutputPort(final int capacity)
+        {
+            times = new long[capacity];
+            messages = new int[capacity];
+        }
+
+
+        /**
+         * Record the specified packed message.
+         *
+         * @param message packed message
+         */
+        private void record(final int message)
+        {
+            long time = System.nanoTime();
+            if (size < times.length)
+            {
+                times[size] = time;
+                messages[size] = message;
+                size++;
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void sendNoteOn(final int channel, final int pitch, final int velocity)
+        {
+            record(EventBuffer.pack(0x90 | channel, pitch, velocity));
+        }
+
+        /** {@inheritDoc} */
+        public void sendNoteOff(final int channel, final int pitch, final int velocity)
+        {
+            record(EventBuffer.pack(0x80 | channel, pitch, velocity));
+        }
+
+        /** {@inheritDoc} */
+        public void sendController(final int channel, final int controller, final int value)
+        {
+            record(EventBuffer.pack(0xB0 | channel, controller, value));
+        }
+
+        /** {@inheritDoc} */
+        public void sendProgramChange(final int channel, final int program)
+        {
+            record(EventBuffer.pack(0xC0 | channel, program, 0));
+        }
+
+        /** {@inheritDoc} */
+        public void sendSysex(final byte[] data, final int offset, final int length)
+        {
+            record(EventBuffer.SYSEX);
+        }
+    }
+
+
+    /**
+     * Park until the specified <code>System.nanoTime()</code>.
+     *
+     * @param time time to park until
+     */
+    private static void parkUntil(final long time)
+    {
+        long delay;
+        while ((delay = time - System.nanoTime()) > 0L)
+        {
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    /**
+     * Record the synthetic performance into the specified looper.
+     *
+     * @param looper looper to record into
+     * @param input loopback input port of the looper
+     */
+    private static void perform(final MidiLooper looper, final LoopbackPort input)
+    {
+        long step = LENGTH / STEPS;
+        long start = System.nanoTime();
+        looper.record();
+        for (int i = 0; i < STEPS; i++)
+        {
+            parkUntil(start + i * step + step / 4);
+            if (i % 4 == 0)
+            {
+                input.sendController(0, 1, i * 8);
+            }
+            input.sendNoteOn(0, 60 + i, 100);
+            parkUntil(start + i * step + step / 4 + NOTE_LENGTH);
+            input.sendNoteOff(0, 60 + i, 0);
+        }
+        parkUntil(start + LENGTH);
+        looper.record();
+    }
+
+    /**
+     * Return the specified percentile of the specified sorted values.
+     *
+     * @param sorted sorted values
+     * @param percentile percentile
+     * @return the specified percentile of the specified sorted values
+     */
+    private static long percentile(final long[] sorted, final double percentile)
+    {
+        int index = (int) Math.ceil(percentile / 100.0d * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Main.
+     *
+     * @param args command line arguments
+     * @throws Exception if an error occurs
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        int cycles = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        double p50Threshold = ((args.length > 1) ? Double.parseDouble(args[1]) : 1.0d) * 1.0e6d;
+        double driftThreshold = ((args.length > 2) ? Double.parseDouble(args[2]) : 1.0d) * 1.0e6d;
+
+        LoopbackPort input = new LoopbackPort();
+        TimestampingOutputPort output = new TimestampingOutputPort(STEPS * 4 * (cycles + 2));
+        MidiLooper looper = new MidiLooper(input, output, 0);
+        perform(looper, input);
+
+        Loop loop = looper.getLoop(0);
+        EventBuffer events = loop.getEvents();
+        long origin = loop.getOrigin();
+        long length = loop.getLength();
+        int expected = events.size() * cycles;
+        while ((output.size < expected) && (System.nanoTime() - origin < (cycles + 3) * length))
+        {
+            Thread.sleep(length / 1000000L);
+        }
+        looper.dispose();
+
+        int size = Math.min(output.size, expected);
+        long[] lateness = new long[size];
+        int errors = 0;
+        // recording stops exactly at the end of the first cycle, so playback starts with the first event
+        for (int i = 0; i < size; i++)
+        {
+            int index = i % events.size();
+            long offset = events.offset(index);
+            long cycle = Math.round((output.times[i] - origin - offset) / (double) length);
+            lateness[i] = output.times[i] - (origin + Loop.cycleStart(cycle, length, 1) + offset);
+            if ((events.message(index) != output.messages[i]) && (EventBuffer.status(events.message(index)) != EventBuffer.SYSEX))
+            {
+                errors++;
+            }
+        }
+        errors += expected - size;
+
+        long[] sorted = Arrays.copyOf(lateness, size);
+        Arrays.sort(sorted);
+        long p50 = (size == 0) ? 0L : percentile(sorted, 50.0d);
+        long p90 = (size == 0) ? 0L : percentile(sorted, 90.0d);
+        long p99 = (size == 0) ? 0L : percentile(sorted, 99.0d);
+        long max = (size == 0) ? 0L : sorted[size - 1];
+
+        System.out.println(String.format("events          %d of %d, %d errors", size, expected, errors));
+        System.out.println(String.format("lateness        p50 %8.3f ms  p90 %8.3f ms  p99 %8.3f ms  max %8.3f ms", p50 / 1.0e6d,
+                                         p90 / 1.0e6d, p99 / 1.0e6d, max / 1.0e6d));
+        long firstMedian = 0L;
+        long drift = 0L;
+        for (int c = 0, n = events.size(); c * n < size; c++)
+        {
+            long[] cycle = Arrays.copyOfRange(lateness, c * n, Math.min(size, (c + 1) * n));
+            Arrays.sort(cycle);
+            long median = percentile(cycle, 50.0d);
+            if (c == 0)
+            {
+                firstMedian = median;
+            }
+            drift = median - firstMedian;
+            System.out.println(String.format("cycle %3d       p50 %8.3f ms  max %8.3f ms  drift %8.3f ms", c, median / 1.0e6d,
+                                             cycle[cycle.length - 1] / 1.0e6d, drift / 1.0e6d));
+        }
+        boolean pass = (errors == 0) && (p50 <= p50Threshold) && (Math.abs(drift) <= driftThreshold);
+        System.out.println(pass ? "PASS" : "FAIL");
+        System.exit(pass ? 0 : 1);
+    }
+}
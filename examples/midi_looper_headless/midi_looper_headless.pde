@@ -53,6 +53,12 @@ void setup()
   input = RWMidi.getInputDevice(inputDeviceName).createInput(this);
   output = RWMidi.getOutputDevice(outputDeviceName).createOutput();
   looper = new MidiLooper(input, output, outputChannel);
+  // play input through to the output, except the command notes
+  looper.setThruExcluded(record, true);
+  looper.setThruExcluded(overdub, true);
+  looper.setThruExcluded(undo, true);
+  looper.setThruExcluded(redo, true);
+  looper.setThru(true);
 }
 
 void draw()
@@ -112,43 +118,4 @@ void noteOnReceived(final Note note)
   {
     redo();
   }
-  else
-  {
-    println("ON " + note.getPitch() + " " + note.getVelocity());
-    output.sendNoteOn(outputChannel, note.getPitch(), note.getVelocity());  
-  }
-}
-
-void noteOffReceived(final Note note)
-{
-  if ((record == note.getPitch()) ||
-      (overdub == note.getPitch()) ||
-      (undo == note.getPitch()) ||
-      (redo == note.getPitch()))
-  {
-    // empty
-  }
-  else
-  {
-    println("OFF " + note.getPitch() + " " + note.getVelocity());
-    output.sendNoteOff(outputChannel, note.getPitch(), note.getVelocity());  
-  }
-}
-
-void programChangeReceived(final ProgramChange programChange)
-{
-  println("PC " + programChange.getNumber());
-  output.sendProgramChange(programChange.getNumber());
-}
-
-void controllerChangeReceived(final Controller controller)
-{
-  println("C " + controller.getCC() + " " + controller.getValue());
-  output.sendController(outputChannel, controller.getCC(), controller.getValue());
-}
-
-void sysexReceived(final SysexMessage sysexMessage)
-{
-  println("S " + String.valueOf(sysexMessage.getMessage()));
-  output.sendSysex(sysexMessage.getMessage());
 }
@@ -0,0 +1,5 @@
+#!/bin/bash
+
+mkdir -p target/bench
+javac -classpath "lib/rwmidi-0.1c.jar" -d target/bench src/midilooper/*.java bench/midilooper/*.java || exit 1
+java -classpath "lib/rwmidi-0.1c.jar:target/bench" midilooper.$1 "${@:2}"
@@ -0,0 +1,97 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.Arrays;
+
+/**
+ * Abstract MIDI input port, keeping the listeners in an array that is replaced
+ * whenever a listener is added or removed, so notifying them neither locks
+ * nor allocates.
+ */
+public abstract class AbstractInputPort implements InputPort
+{
+    /** Listeners. */
+    private volatile InputListener[] listeners = new InputListener[0];
+
+
+    /** {@inheritDoc} */
+    public final synchronized void addListener(final InputListener listener)
+    {
+        if (listener == null)
+        {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        InputListener[] added = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        listeners = added;
+    }
+
+    /** {@inheritDoc} */
+    public final synchronized void removeListener(final InputListener listener)
+    {
+        for (int i = 0; i < listeners.length; i++)
+        {
+            if (listeners[i] == listener)
+            {
+                InputListener[] removed = new InputListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, removed, 0, i);
+                System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                listeners = removed;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notify all listeners of the specified short message.
+     *
+     * @param status status byte, including the channel
+     * @param data1 first data byte
+     * @param data2 second data byte
+     */
+    protected final void fireShortMessage(final int status, final int data1, final int data2)
+    {
+        InputListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++)
+        {
+            listeners[i].shortMessageReceived(status, data1, data2);
+        }
+    }
+
+    /**
+     * Notify all listeners of the specified sysex message.
+     *
+     * @param data array containing the complete sysex message
+     * @param offset offset of the sysex message in <code>data</code>
+     * @param length length of the sysex message
+     */
+    protected final void fireSysex(final byte[] data, final int offset, final int length)
+    {
+        InputListener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++)
+        {
+            listeners[i].sysexReceived(data, offset, length);
+        }
+    }
+}
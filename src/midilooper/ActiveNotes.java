@@ -0,0 +1,114 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Set of the notes sounding on an output port, one bit for each of the 128
+ * pitches on each of the 16 channels.  Only one thread, usually the scheduler
+ * thread, may update a set.
+ */
+final class ActiveNotes
+{
+    /** Bits, by channel and pitch. */
+    private final long[] bits = new long[16 * 128 / 64];
+
+
+    /**
+     * Update this set for the specified message sent to the output port.  A note on
+     * adds the note, and a note off or a note on with zero velocity removes it.
+     *
+     * @param status status byte
+     * @param pitch pitch, the first data byte
+     * @param velocity velocity, the second data byte
+     */
+    void update(final int status, final int pitch, final int velocity)
+    {
+        int command = status & 0xF0;
+        if ((command != 0x90) && (command != 0x80))
+        {
+            return;
+        }
+        int key = ((status & 0x0F) << 7) | (pitch & 0x7F);
+        if ((command == 0x90) && (velocity > 0))
+        {
+            bits[key >>> 6] |= 1L << key;
+        }
+        else
+        {
+            bits[key >>> 6] &= ~(1L << key);
+        }
+    }
+
+    /**
+     * Return true if the specified note is sounding.
+     *
+     * @param channel channel
+     * @param pitch pitch
+     * @return true if the specified note is sounding
+     */
+    boolean contains(final int channel, final int pitch)
+    {
+        int key = ((channel & 0x0F) << 7) | (pitch & 0x7F);
+        return (bits[key >>> 6] & (1L << key)) != 0L;
+    }
+
+    /**
+     * Remove the lowest sounding note from this set and return it as
+     * <code>channel &lt;&lt; 7 | pitch</code>.
+     *
+     * @return the lowest sounding note, or <code>-1</code> if no notes are sounding
+     */
+    int poll()
+    {
+        for (int i = 0; i < bits.length; i++)
+        {
+            long word = bits[i];
+            if (word != 0L)
+            {
+                bits[i] = word & (word - 1L);
+                return (i << 6) | Long.numberOfTrailingZeros(word);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Send a note off for every sounding note to the specified output port, and clear this set.
+     *
+     * @param output output port to send the note offs to, must not be null
+     */
+    void release(final OutputPort output)
+    {
+        for (int i = 0; i < bits.length; i++)
+        {
+            long word = bits[i];
+            while (word != 0L)
+            {
+                int key = (i << 6) | Long.numberOfTrailingZeros(word);
+                output.sendNoteOff(key >>> 7, key & 0x7F, 0);
+                word &= word - 1L;
+            }
+            bits[i] = 0L;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * Time base that follows incoming MIDI clock.
+ *
+ * <p>
+ * Timing clock (<code>0xF8</code>) messages advance the timeline by one tick of
+ * 24 per quarter note, where a quarter note is always 500 ms of timeline, the
+ * length it has at 120 BPM.  Loops recorded and played against this time base
+ * therefore follow the tempo of the clock source.  Tick arrival times are
+ * smoothed with a second order delay-locked loop, which tracks tempo changes
+ * while filtering out transport and scheduling jitter, and the timeline is
+ * interpolated between ticks without running past the next expected tick.
+ * </p>
+ *
+ * <p>
+ * Start (<code>0xFA</code>) restarts the timeline at the next tick, stop
+ * (<code>0xFC</code>) freezes it, and continue (<code>0xFB</code>) resumes it.
+ * </p>
+ */
+final class ClockFollower implements TimeBase, Receiver
+{
+    /** Length of a tick on the timeline, in nanoseconds. */
+    static final long TICK = 500000000L / 24L;
+
+    /** Delay-locked loop bandwidth, as a fraction of the tick rate. */
+    private static final double BANDWIDTH = 0.02d;
+
+    /** Delay-locked loop first order coefficient. */
+    private static final double B = Math.sqrt(2.0d) * 2.0d * Math.PI * BANDWIDTH;
+
+    /** Delay-locked loop second order coefficient. */
+    private static final double C = (2.0d * Math.PI * BANDWIDTH) * (2.0d * Math.PI * BANDWIDTH);
+
+    /** Listener notified when the clock starts, or <code>null</code>. */
+    private final Listener listener;
+
+    /** Timeline position of tick zero. */
+    private long base;
+
+    /** Number of ticks since tick zero, at <code>t0</code>. */
+    private long ticks;
+
+    /** True if the clock is running. */
+    private boolean running;
+
+    /** True if the delay-locked loop has been initialized since the clock started or continued. */
+    private boolean locked;
+
+    /** Filtered time of the last tick, in <code>System.nanoTime()</code> nanoseconds. */
+    private long t0;
+
+    /** Predicted time of the next tick, relative to <code>t0</code>, in nanoseconds. */
+    private double t1;
+
+    /** Filtered tick period, in nanoseconds. */
+    private double period;
+
+
+    /**
+     * Create a new clock follower, continuing on from the specified timeline position.
+     *
+     * @param position timeline position to continue from, in nanoseconds
+     * @param listener listener notified when the clock starts, or <code>null</code>
+     */
+    ClockFollower(final long position, final Listener listener)
+    {
+        this.base = position;
+        this.listener = listener;
+        this.period = TICK;
+    }
+
+
+    /** {@inheritDoc} */
+    public synchronized long now()
+    {
+        long position = base + ticks * TICK;
+        if (running && locked)
+        {
+            double phase = (System.nanoTime() - t0) / t1;
+            position += (long) (Math.max(0.0d, Math.min(1.0d, phase)) * TICK);
+        }
+        return position;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long toNanoTime(final long position)
+    {
+        if (!running || !locked)
+        {
+            return Long.MAX_VALUE;
+        }
+        return t0 + (long) ((position - base - ticks * TICK) * (t1 / TICK));
+    }
+
+    /**
+     * Return the tempo estimated from the filtered tick period, in beats per minute.
+     *
+     * @return the tempo estimated from the filtered tick period, in beats per minute
+     */
+    synchronized double getTempo()
+    {
+        return 60.0e9d / (period * 24.0d);
+    }
+
+    /**
+     * Return the filtered tick period, in nanoseconds.
+     *
+     * @return the filtered tick period, in nanoseconds
+     */
+    synchronized double getPeriod()
+    {
+        return period;
+    }
+
+    /**
+     * Return the filtered time of the last tick, in <code>System.nanoTime()</code> nanoseconds.
+     *
+     * @return the filtered time of the last tick, in <code>System.nanoTime()</code> nanoseconds
+     */
+    synchronized long getTickTime()
+    {
+        return t0;
+    }
+
+    /**
+     * Return true if the clock is running.
+     *
+     * @return true if the clock is running
+     */
+    synchronized boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Timing clock received at the specified time.
+     *
+     * @param time time the timing clock was received, in <code>System.nanoTime()</code> nanoseconds
+     */
+    synchronized void clock(final long time)
+    {
+        if (!running)
+        {
+            return;
+        }
+        if (!locked)
+        {
+            locked = true;
+            t0 = time;
+            t1 = period;
+        }
+        else
+        {
+            double error = (time - t0) - t1;
+            t0 += (long) t1;
+            t1 = t1 - (long) t1 + B * error + period;
+            period += C * error;
+            ticks++;
+        }
+    }
+
+    /**
+     * Start received at the specified time.  The timeline restarts from its current
+     * position at the next timing clock.
+     *
+     * @param time time the start was received, in <code>System.nanoTime()</code> nanoseconds
+     */
+    void start(final long time)
+    {
+        long position;
+        synchronized (this)
+        {
+            position = now();
+            base = position;
+            ticks = 0L;
+            running = true;
+            locked = false;
+        }
+        if (listener != null)
+        {
+            listener.clockStarted(position);
+        }
+    }
+
+    /**
+     * Stop received at the specified time.  The timeline freezes at its current position.
+     *
+     * @param time time the stop was received, in <code>System.nanoTime()</code> nanoseconds
+     */
+    synchronized void stop(final long time)
+    {
+        if (running)
+        {
+            long position = now();
+            running = false;
+            locked = false;
+            base = position;
+            ticks = 0L;
+        }
+    }
+
+    /**
+     * Continue received at the specified time.  The timeline resumes from its current
+     * position at the next timing clock.
+     *
+     * @param time time the continue was received, in <code>System.nanoTime()</code> nanoseconds
+     */
+    synchronized void resume(final long time)
+    {
+        running = true;
+        locked = false;
+    }
+
+    /** {@inheritDoc} */
+    public void send(final MidiMessage message, final long timeStamp)
+    {
+        long time = System.nanoTime();
+        switch (message.getStatus())
+        {
+        case 0xF8:
+            clock(time);
+            break;
+        case 0xFA:
+            start(time);
+            break;
+        case 0xFB:
+            resume(time);
+            break;
+        case 0xFC:
+            stop(time);
+            break;
+        default:
+            break;
+        }
+        if (listener != null)
+        {
+            listener.clockChanged();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void close()
+    {
+        // empty
+    }
+
+
+    /**
+     * Clock follower listener.
+     */
+    interface Listener
+    {
+
+        /**
+         * Notify this listener the clock has started, with the timeline restarting at the specified position.
+         *
+         * @param position timeline position the clock restarted at, in nanoseconds
+         */
+        void clockStarted(long position);
+
+        /**
+         * Notify this listener the clock has changed, and deadlines should be recomputed.
+         */
+        void clockChanged();
+    }
+}
@@ -0,0 +1,274 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * MIDI clock generator.
+ *
+ * <p>
+ * Sends start, then 24 timing clocks per beat, derived from the length of the
+ * master loop and the number of beats in it.  Ticks are scheduled on the same
+ * playback timeline as loop events, with the deadline of each computed from
+ * its tick number, so they neither drift nor depend on a separate thread.
+ * The interval between sent ticks is measured against the expected interval.
+ * </p>
+ */
+final class ClockGenerator extends ScheduledTask
+{
+    /** Timing clocks per beat. */
+    static final int TICKS_PER_BEAT = 24;
+
+    /** How late a start may be, on the playback timeline, before waiting for the next cycle. */
+    private static final long LATE_START = 10000000L;
+
+    /** Timing clock message. */
+    private final ShortMessage clockMessage = realTime(ShortMessage.TIMING_CLOCK);
+
+    /** Start message. */
+    private final ShortMessage startMessage = realTime(ShortMessage.START);
+
+    /** Stop message. */
+    private final ShortMessage stopMessage = realTime(ShortMessage.STOP);
+
+    /** Receiver to send clock to. */
+    private final Receiver receiver;
+
+    /** Playback scheduler. */
+    private final Scheduler scheduler;
+
+    /** Origin of the master loop, in nanoseconds on the playback timeline. */
+    private long origin;
+
+    /** Length of the master loop, in nanoseconds. */
+    private long length;
+
+    /** Ticks per master loop. */
+    private long ticksPerLoop;
+
+    /** Next tick, from the origin. */
+    private long tick;
+
+    /** True if start has been scheduled or sent. */
+    private boolean running;
+
+    /** True if start should be sent before the next tick. */
+    private boolean startPending;
+
+    /** <code>System.nanoTime()</code> of the last tick sent. */
+    private long lastSent;
+
+    /** Expected <code>System.nanoTime()</code> of the last tick sent. */
+    private long lastExpected;
+
+    /** Number of interval jitter samples. */
+    private long count;
+
+    /** Mean interval jitter. */
+    private double mean;
+
+    /** Sum of squared differences from the mean interval jitter. */
+    private double squares;
+
+    /** Minimum interval jitter. */
+    private long minimum;
+
+    /** Maximum interval jitter. */
+    private long maximum;
+
+
+    /**
+     * Create a new clock generator.
+     *
+     * @param receiver receiver to send clock to, must not be null
+     * @param scheduler playback scheduler, must not be null
+     */
+    ClockGenerator(final Receiver receiver, final Scheduler scheduler)
+    {
+        if (receiver == null)
+        {
+            throw new IllegalArgumentException("receiver must not be null");
+        }
+        if (scheduler == null)
+        {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        this.receiver = receiver;
+        this.scheduler = scheduler;
+    }
+
+
+    /**
+     * Start sending clock for a master loop with the specified origin, length and
+     * number of beats, from the next cycle of the master loop.  If a cycle began
+     * only just before the specified time, start is sent immediately.
+     *
+     * @param origin origin of the master loop, in nanoseconds on the playback timeline
+     * @param length length of the master loop, in nanoseconds, must be greater than zero
+     * @param beats number of beats in the master loop, must be at least one
+     * @param time current time, in nanoseconds on the playback timeline
+     */
+    void start(final long origin, final long length, final int beats, final long time)
+    {
+        if (length <= 0L)
+        {
+            throw new IllegalArgumentException("length must be greater than zero");
+        }
+        if (beats < 1)
+        {
+            throw new IllegalArgumentException("beats must be at least one");
+        }
+        stop();
+        this.origin = origin;
+        this.length = length;
+        ticksPerLoop = (long) beats * TICKS_PER_BEAT;
+        long cycle = Loop.cycleOf(time - origin - LATE_START, length, 1);
+        tick = (cycle + 1L) * ticksPerLoop;
+        running = true;
+        startPending = true;
+        scheduler.schedule(this, deadline(tick));
+    }
+
+    /**
+     * Stop sending clock, sending stop if start has been sent.
+     */
+    void stop()
+    {
+        scheduler.cancel(this);
+        if (running && !startPending)
+        {
+            send(stopMessage);
+        }
+        running = false;
+        startPending = false;
+    }
+
+    /**
+     * Return true if start has been scheduled or sent.
+     *
+     * @return true if start has been scheduled or sent
+     */
+    boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Return the deadline of the specified tick.
+     *
+     * @param tick tick, from the origin
+     * @return the deadline of the specified tick, in nanoseconds on the playback timeline
+     */
+    private long deadline(final long tick)
+    {
+        return origin + (tick * length) / ticksPerLoop;
+    }
+
+    /** {@inheritDoc} */
+    long dispatch(final long due)
+    {
+        long expected = scheduler.getTimeBase().toNanoTime(due);
+        if (startPending)
+        {
+            send(startMessage);
+            send(clockMessage);
+            startPending = false;
+            lastSent = System.nanoTime();
+        }
+        else
+        {
+            send(clockMessage);
+            long sent = System.nanoTime();
+            sample((sent - lastSent) - (expected - lastExpected));
+            lastSent = sent;
+        }
+        lastExpected = expected;
+        tick++;
+        return deadline(tick);
+    }
+
+    /**
+     * Send the specified message.
+     *
+     * @param message message to send
+     */
+    private void send(final ShortMessage message)
+    {
+        receiver.send(message, -1L);
+    }
+
+    /**
+     * Add the specified interval jitter sample.
+     *
+     * @param jitter interval jitter, in nanoseconds
+     */
+    private synchronized void sample(final long jitter)
+    {
+        if (count == 0L)
+        {
+            minimum = jitter;
+            maximum = jitter;
+        }
+        count++;
+        double delta = jitter - mean;
+        mean += delta / count;
+        squares += delta * (jitter - mean);
+        minimum = Math.min(minimum, jitter);
+        maximum = Math.max(maximum, jitter);
+    }
+
+    /**
+     * Return the tick interval jitter statistics, the difference between each
+     * measured interval between ticks and the expected interval.
+     *
+     * @return the tick interval jitter statistics
+     */
+    synchronized JitterStatistics getJitter()
+    {
+        double variance = (count > 1L) ? (squares / (count - 1L)) : 0.0d;
+        return new JitterStatistics(count, mean, Math.sqrt(variance), minimum, maximum);
+    }
+
+    /**
+     * Create a new real-time message with the specified status.
+     *
+     * @param status status
+     * @return a new real-time message with the specified status
+     */
+    private static ShortMessage realTime(final int status)
+    {
+        try
+        {
+            ShortMessage message = new ShortMessage();
+            message.setMessage(status);
+            return message;
+        }
+        catch (InvalidMidiDataException e)
+        {
+            throw new IllegalStateException("could not create real-time message " + status, e);
+        }
+    }
+}
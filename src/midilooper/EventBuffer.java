@@ -0,0 +1,552 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Event buffer, storing recorded events as parallel primitive arrays.
+ *
+ * <p>
+ * Each event is an offset in nanoseconds and a message packed into an
+ * <code>int</code> as <code>status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16</code>.
+ * Sysex payloads are appended to a separate byte arena, and the message for a
+ * sysex event holds <code>0xF0 | sysex index &lt;&lt; 8</code>.  Events are kept
+ * in the order they are added, which must be non-decreasing by offset.
+ * </p>
+ *
+ * <p>
+ * An event buffer may be written by a single thread and read concurrently by
+ * another without locking.  The writer fills in the next slot and then
+ * publishes it with a volatile write of the size; a reader that reads the size
+ * first sees every event below it.  Growing the arrays copies them into a new
+ * immutable storage holder, also published with a volatile write, so a reader
+ * never sees a partially copied array.
+ * </p>
+ */
+final class EventBuffer
+{
+    /** Status byte for sysex messages. */
+    static final int SYSEX = 0xF0;
+
+    /** Initial capacity. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Storage, replaced by the writer when it grows. */
+    private volatile Storage storage = new Storage(new long[INITIAL_CAPACITY], new int[INITIAL_CAPACITY], new byte[0], new int[0]);
+
+    /** Number of published events. */
+    private volatile int size;
+
+    /** Number of bytes used in the sysex arena, accessed only by the writer. */
+    private int sysexSize;
+
+    /** Number of sysex payloads, accessed only by the writer. */
+    private int sysexCount;
+
+
+    /**
+     * Add a short message event.  Must be called only by the writer thread.
+     *
+     * @param offset offset in nanoseconds
+     * @param status status byte
+     * @param data1 first data byte
+     * @param data2 second data byte
+     */
+    void add(final long offset, final int status, final int data1, final int data2)
+    {
+        append(offset, pack(status, data1, data2));
+    }
+
+    /**
+     * Add a sysex event.  Must be called only by the writer thread.
+     *
+     * @param offset offset in nanoseconds
+     * @param data complete sysex message, including the leading <code>0xF0</code>, must not be null
+     */
+    void addSysex(final long offset, final byte[] data)
+    {
+        if (data == null)
+        {
+            throw new IllegalArgumentException("data must not be null");
+        }
+        addSysex(offset, data, 0, data.length);
+    }
+
+    /**
+     * Add a sysex event, copied from the specified range of an array.  Must be called only by the writer thread.
+     *
+     * @param offset offset in nanoseconds
+     * @param data array containing the complete sysex message, including the leading <code>0xF0</code>,
+     *    must not be null
+     * @param dataOffset offset of the sysex message in <code>data</code>
+     * @param length length of the sysex message
+     */
+    void addSysex(final long offset, final byte[] data, final int dataOffset, final int length)
+    {
+        if (data == null)
+        {
+            throw new IllegalArgumentException("data must not be null");
+        }
+        Storage current = storage;
+        byte[] sysex = current.sysex;
+        int[] sysexBounds = current.sysexBounds;
+        if (2 * sysexCount == sysexBounds.length)
+        {
+            sysexBounds = Arrays.copyOf(sysexBounds, Math.max(8, sysexBounds.length * 2));
+        }
+        if (sysexSize + length > sysex.length)
+        {
+            sysex = Arrays.copyOf(sysex, Math.max(sysexSize + length, sysex.length * 2));
+        }
+        // bytes beyond sysexSize are not yet visible to the reader
+        System.arraycopy(data, dataOffset, sysex, sysexSize, length);
+        sysexBounds[2 * sysexCount] = sysexSize;
+        sysexBounds[2 * sysexCount + 1] = sysexSize + length;
+        if ((sysex != current.sysex) || (sysexBounds != current.sysexBounds))
+        {
+            storage = new Storage(current.offsets, current.messages, sysex, sysexBounds);
+        }
+        sysexSize += length;
+        append(offset, SYSEX | (sysexCount << 8));
+        sysexCount++;
+    }
+
+    /**
+     * Append the specified packed message and publish it.
+     *
+     * @param offset offset in nanoseconds
+     * @param message packed message
+     */
+    private void append(final long offset, final int message)
+    {
+        int n = size;
+        Storage current = storage;
+        if (n == current.offsets.length)
+        {
+            int capacity = Math.max(INITIAL_CAPACITY, n * 2);
+            current = new Storage(Arrays.copyOf(current.offsets, capacity), Arrays.copyOf(current.messages, capacity),
+                                  current.sysex, current.sysexBounds);
+            storage = current;
+        }
+        current.offsets[n] = offset;
+        current.messages[n] = message;
+        size = n + 1;
+    }
+
+    /**
+     * Return the number of published events in this buffer.
+     *
+     * @return the number of published events in this buffer
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Return true if this buffer is empty.
+     *
+     * @return true if this buffer is empty
+     */
+    boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Return the approximate heap memory used by the arrays of this buffer, including spare capacity.
+     *
+     * @return the approximate heap memory used by the arrays of this buffer, in bytes
+     */
+    long getMemory()
+    {
+        Storage current = storage;
+        return 8L * current.offsets.length + 4L * current.messages.length + current.sysex.length
+            + 4L * current.sysexBounds.length;
+    }
+
+    /**
+     * Return the offset of the event at the specified index, which must be less
+     * than a previously read <code>size()</code>.
+     *
+     * @param index index
+     * @return the offset of the event at the specified index, in nanoseconds
+     */
+    long offset(final int index)
+    {
+        return storage.offsets[index];
+    }
+
+    /**
+     * Return the packed message of the event at the specified index, which must
+     * be less than a previously read <code>size()</code>.
+     *
+     * @param index index
+     * @return the packed message of the event at the specified index
+     */
+    int message(final int index)
+    {
+        return storage.messages[index];
+    }
+
+    /**
+     * Return the index of the first event with an offset greater than or equal
+     * to the specified position, or <code>size()</code> if there is none.
+     *
+     * @param position position in nanoseconds
+     * @return the index of the first event at or after the specified position
+     */
+    int indexOf(final long position)
+    {
+        int low = 0;
+        int high = size;
+        long[] offsets = storage.offsets;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (offsets[mid] < position)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Return the sysex arena.  The returned array is not a copy and must not be modified.
+     *
+     * @return the sysex arena
+     */
+    byte[] sysexData()
+    {
+        return storage.sysex;
+    }
+
+    /**
+     * Return the offset in the sysex arena of the payload for the specified sysex message.
+     *
+     * @param message packed sysex message
+     * @return the offset in the sysex arena of the payload for the specified sysex message
+     */
+    int sysexOffset(final int message)
+    {
+        return storage.sysexBounds[2 * (message >>> 8)];
+    }
+
+    /**
+     * Return the length of the payload for the specified sysex message.
+     *
+     * @param message packed sysex message
+     * @return the length of the payload for the specified sysex message
+     */
+    int sysexLength(final int message)
+    {
+        int[] sysexBounds = storage.sysexBounds;
+        int sysexIndex = message >>> 8;
+        return sysexBounds[2 * sysexIndex + 1] - sysexBounds[2 * sysexIndex];
+    }
+
+    /**
+     * Return a new event buffer containing the events in this buffer shifted by
+     * the specified amount, wrapped into a loop of length <code>period / divisor</code>,
+     * optionally quantized, and sorted by offset.  Note on events are moved to the
+     * nearest multiple of the grid and the following note off events for the same
+     * channel and pitch are moved by the same amount.  Notes crossing the loop
+     * boundary wrap to a note on near the end of the loop and a note off near the
+     * start.  Events at the same offset keep the order they were recorded in,
+     * except that events wrapped from a later cycle sort first, so that a note
+     * ending at the loop boundary does not cut off a note starting there.
+     *
+     * @param shift amount to shift every offset by, in nanoseconds
+     * @param period period
+     * @param divisor divisor, loop length is <code>period / divisor</code>
+     * @param grid quantization grid in nanoseconds, or zero for no quantization
+     * @return a new event buffer containing the arranged events in this buffer
+     */
+    EventBuffer arrange(final long shift, final long period, final int divisor, final long grid)
+    {
+        final int n = size;
+        final long length = period / divisor;
+        final long[] positions = new long[n];
+        final long[] cycles = new long[n];
+        long[] noteDeltas = new long[16 * 128];
+        for (int i = 0; i < n; i++)
+        {
+            long position = shift + offset(i);
+            long cycle = Loop.cycleOf(position, period, divisor);
+            position -= Loop.cycleStart(cycle, period, divisor);
+
+            int message = message(i);
+            int command = status(message) & 0xF0;
+            if ((grid > 0L) && ((command == 0x90) || (command == 0x80)))
+            {
+                int key = ((status(message) & 0x0F) << 7) | data1(message);
+                if ((command == 0x90) && (data2(message) > 0))
+                {
+                    long quantized = ((position + grid / 2L) / grid) * grid;
+                    noteDeltas[key] = quantized - position;
+                }
+                position += noteDeltas[key];
+                if (position >= length)
+                {
+                    position -= length;
+                    cycle++;
+                }
+                else if (position < 0L)
+                {
+                    position += length;
+                    cycle--;
+                }
+            }
+            positions[i] = position;
+            cycles[i] = cycle;
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+        {
+            order[i] = Integer.valueOf(i);
+        }
+        // stable, so events at the same position keep the order they were recorded in, later cycles first
+        Arrays.sort(order, new Comparator<Integer>()
+                    {
+                        /** {@inheritDoc} */
+                        public int compare(final Integer index0, final Integer index1)
+                        {
+                            long position0 = positions[index0.intValue()];
+                            long position1 = positions[index1.intValue()];
+                            if (position0 == position1)
+                            {
+                                long cycle0 = cycles[index0.intValue()];
+                                long cycle1 = cycles[index1.intValue()];
+                                return (cycle0 > cycle1) ? -1 : ((cycle0 == cycle1) ? 0 : 1);
+                            }
+                            return (position0 < position1) ? -1 : 1;
+                        }
+                    });
+
+        EventBuffer arranged = new EventBuffer();
+        for (int i = 0; i < n; i++)
+        {
+            int index = order[i].intValue();
+            int message = message(index);
+            if (status(message) == SYSEX)
+            {
+                arranged.addSysex(positions[index], sysexData(), sysexOffset(message), sysexLength(message));
+            }
+            else
+            {
+                arranged.append(positions[index], message);
+            }
+        }
+        return arranged;
+    }
+
+    /**
+     * Return a copy of the events in this buffer in arrays trimmed to their exact
+     * size, with no spare capacity.  Must be called after the writer has stopped
+     * adding events.
+     *
+     * @return a copy of the events in this buffer in arrays trimmed to their exact size
+     */
+    EventBuffer compact()
+    {
+        final int n = size;
+        Storage current = storage;
+        int count = 0;
+        for (int i = 0; i < n; i++)
+        {
+            int message = current.messages[i];
+            if (status(message) == SYSEX)
+            {
+                count = Math.max(count, (message >>> 8) + 1);
+            }
+        }
+        int sysexLength = (count == 0) ? 0 : current.sysexBounds[2 * count - 1];
+
+        EventBuffer compacted = new EventBuffer();
+        compacted.storage = new Storage(Arrays.copyOf(current.offsets, n), Arrays.copyOf(current.messages, n),
+                                        Arrays.copyOf(current.sysex, sysexLength),
+                                        Arrays.copyOf(current.sysexBounds, 2 * count));
+        compacted.sysexSize = sysexLength;
+        compacted.sysexCount = count;
+        compacted.size = n;
+        return compacted;
+    }
+
+    /**
+     * Merge the events of the specified buffers, each repeated the specified number
+     * of cycles, into a new buffer sorted by offset.  The events of each buffer are
+     * already sorted, so the merge takes the next event of whichever buffer is
+     * earliest, with ties going to the buffer first in the array.
+     *
+     * @param buffers event buffers to merge, must not be null
+     * @param periods period of each buffer
+     * @param divisors divisor of each buffer, cycle length is <code>period / divisor</code>
+     * @param repeats number of cycles of each buffer to merge
+     * @return a new event buffer containing the merged events, trimmed to their exact size
+     */
+    static EventBuffer merge(final EventBuffer[] buffers, final long[] periods, final int[] divisors,
+                             final long[] repeats)
+    {
+        if (buffers == null)
+        {
+            throw new IllegalArgumentException("buffers must not be null");
+        }
+        final int k = buffers.length;
+        int[] indexes = new int[k];
+        long[] cycles = new long[k];
+        long[] next = new long[k];
+        for (int i = 0; i < k; i++)
+        {
+            next[i] = (buffers[i].isEmpty() || (repeats[i] == 0L)) ? Long.MAX_VALUE : buffers[i].offset(0);
+        }
+
+        EventBuffer merged = new EventBuffer();
+        while (true)
+        {
+            int earliest = -1;
+            for (int i = 0; i < k; i++)
+            {
+                if ((next[i] != Long.MAX_VALUE) && ((earliest < 0) || (next[i] < next[earliest])))
+                {
+                    earliest = i;
+                }
+            }
+            if (earliest < 0)
+            {
+                break;
+            }
+            EventBuffer buffer = buffers[earliest];
+            int message = buffer.message(indexes[earliest]);
+            if (status(message) == SYSEX)
+            {
+                merged.addSysex(next[earliest], buffer.sysexData(), buffer.sysexOffset(message),
+                                buffer.sysexLength(message));
+            }
+            else
+            {
+                merged.append(next[earliest], message);
+            }
+
+            indexes[earliest]++;
+            if (indexes[earliest] == buffer.size())
+            {
+                indexes[earliest] = 0;
+                cycles[earliest]++;
+            }
+            next[earliest] = (cycles[earliest] == repeats[earliest]) ? Long.MAX_VALUE
+                : Loop.cycleStart(cycles[earliest], periods[earliest], divisors[earliest]) + buffer.offset(indexes[earliest]);
+        }
+        return merged.compact();
+    }
+
+    /**
+     * Pack the specified status and data bytes into a message.
+     *
+     * @param status status byte
+     * @param data1 first data byte
+     * @param data2 second data byte
+     * @return the specified status and data bytes packed into a message
+     */
+    static int pack(final int status, final int data1, final int data2)
+    {
+        return (status & 0xFF) | ((data1 & 0x7F) << 8) | ((data2 & 0x7F) << 16);
+    }
+
+    /**
+     * Return the status byte of the specified packed message.
+     *
+     * @param message packed message
+     * @return the status byte of the specified packed message
+     */
+    static int status(final int message)
+    {
+        return message & 0xFF;
+    }
+
+    /**
+     * Return the first data byte of the specified packed message.
+     *
+     * @param message packed message
+     * @return the first data byte of the specified packed message
+     */
+    static int data1(final int message)
+    {
+        return (message >>> 8) & 0x7F;
+    }
+
+    /**
+     * Return the second data byte of the specified packed message.
+     *
+     * @param message packed message
+     * @return the second data byte of the specified packed message
+     */
+    static int data2(final int message)
+    {
+        return (message >>> 16) & 0x7F;
+    }
+
+
+    /**
+     * Storage arrays.  A new holder is created whenever an array is replaced,
+     * so that its final fields publish the copied contents safely.
+     */
+    private static final class Storage
+    {
+        /** Offsets, in nanoseconds. */
+        final long[] offsets;
+
+        /** Packed messages. */
+        final int[] messages;
+
+        /** Sysex arena. */
+        final byte[] sysex;
+
+        /** Start and end of each sysex payload in the sysex arena. */
+        final int[] sysexBounds;
+
+
+        /**
+         * Create new storage with the specified arrays.
+         *
+         * @param offsets offsets
+         * @param messages packed messages
+         * @param sysex sysex arena
+         * @param sysexBounds sysex bounds
+         */
+        Storage(final long[] offsets, final int[] messages, final byte[] sysex, final int[] sysexBounds)
+        {
+            this.offsets = offsets;
+            this.messages = messages;
+            this.sysex = sysex;
+            this.sysexBounds = sysexBounds;
+        }
+    }
+}
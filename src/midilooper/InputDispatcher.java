@@ -0,0 +1,254 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import rwmidi.MidiEvent;
+
+/**
+ * Input dispatcher, the single listener a MIDI looper plugs into its input port.
+ *
+ * <p>
+ * Each message received is timestamped once on the playback timeline, played
+ * through to the selected track if thru is on, and recorded in the loop that
+ * is recording, if any.  Loops are never listeners themselves, so however many
+ * loops are stacked, one listener is called per message and only the recording
+ * loop is handed it.  Messages are dispatched on the input thread, without
+ * allocation.  Messages are recorded holding the lock of the dispatcher, so that
+ * once {@link #setRecording(Loop)} returns, the input thread has stopped writing
+ * to the loop that was recording, and so that a looper command journaled while
+ * holding the lock is ordered in the journal exactly where the dispatcher
+ * switched loops.
+ * </p>
+ */
+final class InputDispatcher implements InputListener
+{
+    /** Playback scheduler, the timeline messages are timestamped on. */
+    private final Scheduler scheduler;
+
+    /** Selected track, input is played through to. */
+    private volatile Track track;
+
+    /** Loop recording input, or <code>null</code> if none, guarded by this. */
+    private Loop recording;
+
+    /** True if input is played through to the selected track. */
+    private volatile boolean thru = false;
+
+    /** Pitches of notes not played through, replaced rather than modified. */
+    private volatile boolean[] excluded = new boolean[128];
+
+    /** Number of messages recorded, written only by the input thread. */
+    private volatile long recorded = 0L;
+
+
+    /**
+     * Create a new input dispatcher.
+     *
+     * @param scheduler playback scheduler, must not be null
+     * @param track selected track, must not be null
+     */
+    InputDispatcher(final Scheduler scheduler, final Track track)
+    {
+        if (scheduler == null)
+        {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        this.scheduler = scheduler;
+        setTrack(track);
+    }
+
+
+    /**
+     * Set the selected track, input is played through to.
+     *
+     * @param track selected track, must not be null
+     */
+    void setTrack(final Track track)
+    {
+        if (track == null)
+        {
+            throw new IllegalArgumentException("track must not be null");
+        }
+        this.track = track;
+    }
+
+    /**
+     * Set the loop recording input, waiting for the input thread to finish
+     * recording the message it is recording, if any.
+     *
+     * @param recording loop recording input, or <code>null</code> if none
+     */
+    synchronized void setRecording(final Loop recording)
+    {
+        this.recording = recording;
+    }
+
+    /**
+     * Set whether input is played through to the selected track.
+     *
+     * @param thru true to play input through to the selected track
+     */
+    void setThru(final boolean thru)
+    {
+        this.thru = thru;
+    }
+
+    /**
+     * Return true if input is played through to the selected track.
+     *
+     * @return true if input is played through to the selected track
+     */
+    boolean isThru()
+    {
+        return thru;
+    }
+
+    /**
+     * Set whether notes of the specified pitch are excluded from being played through.
+     *
+     * @param pitch pitch, <code>[0..127]</code>
+     * @param exclude true to exclude notes of the specified pitch from being played through
+     */
+    synchronized void setThruExcluded(final int pitch, final boolean exclude)
+    {
+        if ((pitch < 0) || (pitch > 127))
+        {
+            throw new IllegalArgumentException("pitch must be between 0 and 127");
+        }
+        boolean[] copy = excluded.clone();
+        copy[pitch] = exclude;
+        excluded = copy;
+    }
+
+    /**
+     * Return true if notes of the specified pitch are excluded from being played through.
+     *
+     * @param pitch pitch, <code>[0..127]</code>
+     * @return true if notes of the specified pitch are excluded from being played through
+     */
+    boolean isThruExcluded(final int pitch)
+    {
+        if ((pitch < 0) || (pitch > 127))
+        {
+            throw new IllegalArgumentException("pitch must be between 0 and 127");
+        }
+        return excluded[pitch];
+    }
+
+    /**
+     * Return the number of messages recorded since this dispatcher was created.
+     *
+     * @return the number of messages recorded since this dispatcher was created
+     */
+    long getRecorded()
+    {
+        return recorded;
+    }
+
+    /** {@inheritDoc} */
+    public void shortMessageReceived(final int status, final int data1, final int data2)
+    {
+        long time = scheduler.now();
+        if (thru)
+        {
+            playThru(track, excluded, status, data1, data2);
+        }
+        synchronized (this)
+        {
+            if ((recording != null) && recording.getTrack().accepts(status))
+            {
+                recording.record(time, status, data1, data2);
+                recorded++;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void sysexReceived(final byte[] data, final int offset, final int length)
+    {
+        long time = scheduler.now();
+        if (thru)
+        {
+            OutputPort output = track.getOutput();
+            synchronized (output)
+            {
+                output.sendSysex(data, offset, length);
+            }
+        }
+        synchronized (this)
+        {
+            if (recording != null)
+            {
+                recording.recordSysex(time, data, offset, length);
+                recorded++;
+            }
+        }
+    }
+
+    /**
+     * Play the specified short message through to the specified track, holding
+     * the lock of its output port so as not to interleave with the scheduler
+     * flushing the output batch of the track.
+     *
+     * @param track track
+     * @param excluded pitches of notes not played through
+     * @param status status byte
+     * @param data1 first data byte
+     * @param data2 second data byte
+     */
+    private static void playThru(final Track track, final boolean[] excluded, final int status, final int data1,
+                                 final int data2)
+    {
+        if (!track.accepts(status))
+        {
+            return;
+        }
+        int command = status & 0xF0;
+        if (((command == MidiEvent.NOTE_ON) || (command == MidiEvent.NOTE_OFF)) && excluded[data1 & 0x7F])
+        {
+            return;
+        }
+        OutputPort output = track.getOutput();
+        int channel = track.getOutputChannel(status & 0x0F);
+        synchronized (output)
+        {
+            switch (status & 0xF0)
+            {
+            case MidiEvent.NOTE_ON:
+                output.sendNoteOn(channel, data1, data2);
+                break;
+            case MidiEvent.NOTE_OFF:
+                output.sendNoteOff(channel, data1, data2);
+                break;
+            case MidiEvent.CONTROL_CHANGE:
+                output.sendController(channel, data1, data2);
+                break;
+            case MidiEvent.PROGRAM_CHANGE:
+                output.sendProgramChange(channel, data1);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Listener for the messages received by a MIDI input port.
+ */
+public interface InputListener
+{
+
+    /**
+     * Notify this listener of a short message.
+     *
+     * @param status status byte, including the channel
+     * @param data1 first data byte
+     * @param data2 second data byte, or zero for messages with one data byte
+     */
+    void shortMessageReceived(int status, int data1, int data2);
+
+    /**
+     * Notify this listener of a sysex message.  The array may be reused once
+     * this method returns.
+     *
+     * @param data array containing the complete sysex message, including the leading <code>0xF0</code>
+     * @param offset offset of the sysex message in <code>data</code>
+     * @param length length of the sysex message
+     */
+    void sysexReceived(byte[] data, int offset, int length);
+}
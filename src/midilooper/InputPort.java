@@ -23,9 +23,24 @@
 package midilooper;
 
 /**
- * Event.
+ * MIDI input port.  Implement this interface, usually by extending
+ * {@link AbstractInputPort}, to record from a MIDI backend other than
+ * rwmidi or <code>javax.sound.midi</code>.
  */
-interface Event extends Runnable
+public interface InputPort
 {
-    // empty
+
+    /**
+     * Add the specified listener, to be notified of every message received by this input port.
+     *
+     * @param listener listener to add, must not be null
+     */
+    void addListener(InputListener listener);
+
+    /**
+     * Remove the specified listener.
+     *
+     * @param listener listener to remove
+     */
+    void removeListener(InputListener listener);
 }
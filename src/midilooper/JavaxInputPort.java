@@ -0,0 +1,81 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+/**
+ * Input port that receives from a <code>javax.sound.midi</code> transmitter.
+ *
+ * <p>
+ * Short messages are read in place, without allocating.  System messages,
+ * including real-time messages, are ignored; sysex messages are copied once
+ * from the message.
+ * </p>
+ */
+public final class JavaxInputPort extends AbstractInputPort implements Receiver
+{
+
+    /**
+     * Create a new input port receiving from the specified transmitter.
+     *
+     * @param transmitter transmitter, must not be null
+     */
+    public JavaxInputPort(final Transmitter transmitter)
+    {
+        if (transmitter == null)
+        {
+            throw new IllegalArgumentException("transmitter must not be null");
+        }
+        transmitter.setReceiver(this);
+    }
+
+
+    /** {@inheritDoc} */
+    public void send(final MidiMessage message, final long timeStamp)
+    {
+        if (message instanceof ShortMessage)
+        {
+            ShortMessage shortMessage = (ShortMessage) message;
+            int status = shortMessage.getStatus();
+            if (status < 0xF0)
+            {
+                fireShortMessage(status, shortMessage.getData1(), shortMessage.getData2());
+            }
+        }
+        else if (message.getStatus() == EventBuffer.SYSEX)
+        {
+            byte[] data = message.getMessage();
+            fireSysex(data, 0, message.getLength());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void close()
+    {
+        // empty
+    }
+}
@@ -0,0 +1,236 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Output port that sends to a <code>javax.sound.midi</code> receiver.
+ *
+ * <p>
+ * One short message and one sysex message are reused for every send, so the
+ * receiver must not keep a reference to a message once it has been sent, as
+ * is the case for the receivers of hardware devices.  Only one thread, usually
+ * the scheduler thread, may send to a port.
+ * </p>
+ *
+ * <p>
+ * A port created as timestamped for a device with a microsecond clock sends
+ * messages with timestamps on the clock of the device, so they can be sent ahead
+ * of time.  Every other port sends messages without a timestamp, to be played
+ * immediately.  A device reporting the position of its clock does not mean that
+ * it plays messages at their timestamps; many hardware devices ignore timestamps
+ * and play every message as soon as it is received, so a port should only be
+ * created as timestamped for a device known to honour them, such as a sequencer
+ * or a software synthesizer.
+ * </p>
+ */
+public final class JavaxOutputPort implements TimestampedOutputPort
+{
+    /** Interval between synchronizations with the clock of the device, in nanoseconds. */
+    private static final long SYNC_INTERVAL = 1000000000L;
+
+    /** Receiver. */
+    private final Receiver receiver;
+
+    /** Device timestamps are on the clock of, or <code>null</code> if this port is not timestamped. */
+    private final MidiDevice device;
+
+    /** Value of <code>System.nanoTime()</code> at the last synchronization with the clock of the device. */
+    private long syncNanoTime;
+
+    /** Position of the clock of the device at the last synchronization, in microseconds. */
+    private long syncPosition;
+
+    /** Timestamp of the messages sent from now on, in microseconds on the clock of the device, or <code>-1L</code>. */
+    private long deviceTimeStamp = -1L;
+
+    /** Reused short message. */
+    private final ShortMessage shortMessage = new ShortMessage();
+
+    /** Reused sysex message. */
+    private final SysexMessage sysexMessage = new SysexMessage();
+
+    /** Sysex scratch buffer, grown to the largest sysex message sent. */
+    private byte[] sysex = new byte[256];
+
+
+    /**
+     * Create a new output port sending to the specified receiver.
+     *
+     * @param receiver receiver, must not be null
+     */
+    public JavaxOutputPort(final Receiver receiver)
+    {
+        if (receiver == null)
+        {
+            throw new IllegalArgumentException("receiver must not be null");
+        }
+        this.receiver = receiver;
+        this.device = null;
+    }
+
+    /**
+     * Create a new output port sending to a receiver of the specified device, which
+     * must be open.  The port is not timestamped.
+     *
+     * @param device device, must not be null
+     * @throws MidiUnavailableException if a receiver is not available from the device
+     */
+    public JavaxOutputPort(final MidiDevice device) throws MidiUnavailableException
+    {
+        this(device, false);
+    }
+
+    /**
+     * Create a new output port sending to a receiver of the specified device, which
+     * must be open, optionally timestamped.  Only create a timestamped port for a
+     * device known to play messages at their timestamps; the position of the clock
+     * of a device is no indication that it does.
+     *
+     * @param device device, must not be null
+     * @param timestamped true to send messages with timestamps on the clock of the device,
+     *    in which case the device must report the position of its clock
+     * @throws MidiUnavailableException if a receiver is not available from the device
+     */
+    public JavaxOutputPort(final MidiDevice device, final boolean timestamped) throws MidiUnavailableException
+    {
+        if (device == null)
+        {
+            throw new IllegalArgumentException("device must not be null");
+        }
+        if (timestamped && (device.getMicrosecondPosition() < 0L))
+        {
+            throw new IllegalArgumentException("device must report the position of its clock to be timestamped");
+        }
+        this.receiver = device.getReceiver();
+        this.device = timestamped ? device : null;
+        if (timestamped)
+        {
+            sync(System.nanoTime());
+        }
+    }
+
+
+    /** {@inheritDoc} */
+    public boolean isTimestamped()
+    {
+        return device != null;
+    }
+
+    /** {@inheritDoc} */
+    public void setTimeStamp(final long timeStamp)
+    {
+        if ((device == null) || (timeStamp == IMMEDIATELY))
+        {
+            deviceTimeStamp = -1L;
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - syncNanoTime > SYNC_INTERVAL)
+        {
+            sync(now);
+        }
+        deviceTimeStamp = Math.max(0L, syncPosition + (timeStamp - syncNanoTime) / 1000L);
+    }
+
+    /**
+     * Synchronize with the clock of the device.
+     *
+     * @param nanoTime current value of <code>System.nanoTime()</code>
+     */
+    private void sync(final long nanoTime)
+    {
+        syncPosition = device.getMicrosecondPosition();
+        syncNanoTime = nanoTime;
+    }
+
+    /** {@inheritDoc} */
+    public void sendNoteOn(final int channel, final int pitch, final int velocity)
+    {
+        send(ShortMessage.NOTE_ON, channel, pitch, velocity);
+    }
+
+    /** {@inheritDoc} */
+    public void sendNoteOff(final int channel, final int pitch, final int velocity)
+    {
+        send(ShortMessage.NOTE_OFF, channel, pitch, velocity);
+    }
+
+    /** {@inheritDoc} */
+    public void sendController(final int channel, final int controller, final int value)
+    {
+        send(ShortMessage.CONTROL_CHANGE, channel, controller, value);
+    }
+
+    /** {@inheritDoc} */
+    public void sendProgramChange(final int channel, final int program)
+    {
+        send(ShortMessage.PROGRAM_CHANGE, channel, program, 0);
+    }
+
+    /** {@inheritDoc} */
+    public void sendSysex(final byte[] data, final int offset, final int length)
+    {
+        if (sysex.length < length)
+        {
+            sysex = new byte[Math.max(length, sysex.length * 2)];
+        }
+        System.arraycopy(data, offset, sysex, 0, length);
+        try
+        {
+            sysexMessage.setMessage(sysex, length);
+            receiver.send(sysexMessage, deviceTimeStamp);
+        }
+        catch (InvalidMidiDataException e)
+        {
+            // ignore
+        }
+    }
+
+    /**
+     * Send a short message with the specified command, channel and data bytes.
+     *
+     * @param command command
+     * @param channel channel
+     * @param data1 first data byte
+     * @param data2 second data byte
+     */
+    private void send(final int command, final int channel, final int data1, final int data2)
+    {
+        try
+        {
+            shortMessage.setMessage(command, channel, data1, data2);
+            receiver.send(shortMessage, deviceTimeStamp);
+        }
+        catch (InvalidMidiDataException e)
+        {
+            // ignore
+        }
+    }
+}
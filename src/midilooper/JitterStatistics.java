@@ -0,0 +1,120 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Timing jitter statistics, in nanoseconds.
+ */
+public final class JitterStatistics
+{
+    /** Number of samples. */
+    private final long count;
+
+    /** Mean. */
+    private final double mean;
+
+    /** Standard deviation. */
+    private final double standardDeviation;
+
+    /** Minimum. */
+    private final long minimum;
+
+    /** Maximum. */
+    private final long maximum;
+
+
+    /**
+     * Create new jitter statistics.
+     *
+     * @param count number of samples
+     * @param mean mean, in nanoseconds
+     * @param standardDeviation standard deviation, in nanoseconds
+     * @param minimum minimum, in nanoseconds
+     * @param maximum maximum, in nanoseconds
+     */
+    JitterStatistics(final long count, final double mean, final double standardDeviation, final long minimum, final long maximum)
+    {
+        this.count = count;
+        this.mean = mean;
+        this.standardDeviation = standardDeviation;
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+
+    /**
+     * Return the number of samples.
+     *
+     * @return the number of samples
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Return the mean, in nanoseconds.
+     *
+     * @return the mean, in nanoseconds
+     */
+    public double getMean()
+    {
+        return mean;
+    }
+
+    /**
+     * Return the standard deviation, in nanoseconds.
+     *
+     * @return the standard deviation, in nanoseconds
+     */
+    public double getStandardDeviation()
+    {
+        return standardDeviation;
+    }
+
+    /**
+     * Return the minimum, in nanoseconds.
+     *
+     * @return the minimum, in nanoseconds
+     */
+    public long getMinimum()
+    {
+        return minimum;
+    }
+
+    /**
+     * Return the maximum, in nanoseconds.
+     *
+     * @return the maximum, in nanoseconds
+     */
+    public long getMaximum()
+    {
+        return maximum;
+    }
+
+    /** {@inheritDoc} */
+    public String toString()
+    {
+        return "n " + count + " mean " + mean + " sd " + standardDeviation + " min " + minimum + " max " + maximum;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only session journal, in a memory-mapped file.
+ *
+ * <p>
+ * Every recorded message and every looper command is appended as a fixed
+ * 16 byte record: the time on the playback timeline as a <code>long</code>,
+ * then the record type and its data as <code>int</code>s.  Sysex records are
+ * followed by their payload, padded to a multiple of 16 bytes.  Appending is a
+ * few stores into a mapped region of the file, with no system call per record;
+ * the operating system writes the pages back, so the journal survives the
+ * process dying.  The file is extended a region at a time, and the unused tail
+ * of the last region is zero, which marks the end of the journal.
+ * </p>
+ */
+final class Journal
+{
+    /** End of journal record type. */
+    static final int END = 0;
+
+    /** Record command record type. */
+    static final int RECORD = 1;
+
+    /** Overdub command record type. */
+    static final int OVERDUB = 2;
+
+    /** Undo command record type. */
+    static final int UNDO = 3;
+
+    /** Redo command record type. */
+    static final int REDO = 4;
+
+    /** Short message record type, data is the packed message. */
+    static final int MESSAGE = 5;
+
+    /** Sysex message record type, data is the payload length. */
+    static final int SYSEX = 6;
+
+    /** Quantize setting record type, data is the number of divisions. */
+    static final int QUANTIZE = 7;
+
+    /** Restart record type, time is the new origin of all loops. */
+    static final int RESTART = 8;
+
+    /** New session record type, time is the origin of all loops on the timeline of the new session. */
+    static final int SESSION = 9;
+
+    /** Track selection record type, data is the index of the selected track. */
+    static final int TRACK = 10;
+
+    /** Undo depth record type, data is the maximum number of loops in the undo stack. */
+    static final int UNDO_DEPTH = 11;
+
+    /** Undo budget record type, data is the memory budget of the undo stack in kilobytes. */
+    static final int UNDO_BUDGET = 12;
+
+    /** Bounce record type. */
+    static final int BOUNCE = 13;
+
+    /** Un-bounce record type. */
+    static final int UNBOUNCE = 14;
+
+    /** Bounce threshold record type, data is the number of loops above which loops are bounced. */
+    static final int BOUNCE_THRESHOLD = 15;
+
+    /** Record size, in bytes. */
+    static final int RECORD_SIZE = 16;
+
+    /** Mapped region size, in bytes. */
+    private static final int REGION_SIZE = 16 * 1024 * 1024;
+
+    /** File. */
+    private final RandomAccessFile file;
+
+    /** File channel. */
+    private final FileChannel channel;
+
+    /** Current mapped region. */
+    private MappedByteBuffer region;
+
+    /** Position in the file of the current mapped region. */
+    private long regionStart;
+
+
+    /**
+     * Open the journal in the specified file, appending after any records it already contains.
+     *
+     * @param file file, must not be null
+     * @throws IOException if an I/O error occurs
+     */
+    Journal(final File file) throws IOException
+    {
+        if (file == null)
+        {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+
+        long end = 0L;
+        Reader reader = new Reader(file);
+        try
+        {
+            while (reader.next())
+            {
+                // empty
+            }
+            end = reader.position();
+        }
+        finally
+        {
+            reader.close();
+        }
+        regionStart = end - (end % REGION_SIZE);
+        region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+        region.position((int) (end - regionStart));
+    }
+
+
+    /**
+     * Append a command record.
+     *
+     * @param time time on the playback timeline, in nanoseconds
+     * @param type record type
+     * @param data record data
+     */
+    synchronized void append(final long time, final int type, final int data)
+    {
+        try
+        {
+            reserve();
+            int position = region.position();
+            region.putLong(position, time);
+            region.putInt(position + 12, data);
+            // type last, a zero type marks the end of the journal
+            region.putInt(position + 8, type);
+            region.position(position + RECORD_SIZE);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("could not extend journal", e);
+        }
+    }
+
+    /**
+     * Append a sysex record.
+     *
+     * @param time time on the playback timeline, in nanoseconds
+     * @param data array containing the complete sysex message
+     * @param offset offset of the sysex message in <code>data</code>
+     * @param length length of the sysex message
+     */
+    synchronized void appendSysex(final long time, final byte[] data, final int offset, final int length)
+    {
+        try
+        {
+            // payload first, so the record only becomes visible once complete
+            long recordPosition = regionStart + region.position();
+            reserve();
+            int recordIndex = region.position();
+            region.position(recordIndex + RECORD_SIZE);
+            int written = 0;
+            while (written < length)
+            {
+                reserve();
+                int chunk = Math.min(length - written, region.remaining());
+                region.put(data, offset + written, chunk);
+                written += chunk;
+            }
+            int padding = (RECORD_SIZE - (length % RECORD_SIZE)) % RECORD_SIZE;
+            region.position(region.position() + padding);
+
+            MappedByteBuffer recordRegion = region;
+            if (recordPosition < regionStart)
+            {
+                recordRegion = channel.map(FileChannel.MapMode.READ_WRITE, recordPosition, RECORD_SIZE);
+                recordIndex = 0;
+            }
+            recordRegion.putLong(recordIndex, time);
+            recordRegion.putInt(recordIndex + 12, length);
+            recordRegion.putInt(recordIndex + 8, SYSEX);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("could not extend journal", e);
+        }
+    }
+
+    /**
+     * Map the next region if the current one is full.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void reserve() throws IOException
+    {
+        if (!region.hasRemaining())
+        {
+            regionStart += REGION_SIZE;
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+        }
+    }
+
+    /**
+     * Flush the journal to storage and close it.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    synchronized void close() throws IOException
+    {
+        region.force();
+        file.close();
+    }
+
+
+    /**
+     * Sequential journal reader.
+     */
+    static final class Reader
+    {
+        /** File. */
+        private final RandomAccessFile file;
+
+        /** File channel. */
+        private final FileChannel channel;
+
+        /** Current mapped region, or <code>null</code> if the file is empty. */
+        private MappedByteBuffer region;
+
+        /** Position in the file of the current mapped region. */
+        private long regionStart;
+
+        /** Time of the current record. */
+        private long time;
+
+        /** Type of the current record. */
+        private int type;
+
+        /** Data of the current record. */
+        private int data;
+
+        /** Payload of the current sysex record. */
+        private byte[] sysex;
+
+
+        /**
+         * Open a reader for the journal in the specified file.
+         *
+         * @param file file, must not be null
+         * @throws IOException if an I/O error occurs
+         */
+        Reader(final File file) throws IOException
+        {
+            this.file = new RandomAccessFile(file, "r");
+            channel = this.file.getChannel();
+            map(0L);
+        }
+
+
+        /**
+         * Map the region at the specified position, if the file extends that far.
+         *
+         * @param position position in the file
+         * @throws IOException if an I/O error occurs
+         */
+        private void map(final long position) throws IOException
+        {
+            regionStart = position;
+            long size = Math.min(REGION_SIZE, channel.size() - position);
+            region = (size > 0L) ? channel.map(FileChannel.MapMode.READ_ONLY, position, size) : null;
+        }
+
+        /**
+         * Advance to the next record.
+         *
+         * @return true if there is a next record, false at the end of the journal
+         * @throws IOException if an I/O error occurs
+         */
+        boolean next() throws IOException
+        {
+            if ((region != null) && !region.hasRemaining())
+            {
+                map(regionStart + region.capacity());
+            }
+            if ((region == null) || (region.remaining() < RECORD_SIZE))
+            {
+                return false;
+            }
+            int position = region.position();
+            type = region.getInt(position + 8);
+            if (type == END)
+            {
+                return false;
+            }
+            time = region.getLong(position);
+            data = region.getInt(position + 12);
+            region.position(position + RECORD_SIZE);
+            if (type == SYSEX)
+            {
+                sysex = new byte[data];
+                int read = 0;
+                while (read < data)
+                {
+                    if (!region.hasRemaining())
+                    {
+                        map(regionStart + region.capacity());
+                        if (region == null)
+                        {
+                            throw new IOException("truncated sysex record in journal");
+                        }
+                    }
+                    int chunk = Math.min(data - read, region.remaining());
+                    region.get(sysex, read, chunk);
+                    read += chunk;
+                }
+                int padding = (RECORD_SIZE - (data % RECORD_SIZE)) % RECORD_SIZE;
+                region.position(Math.min(region.limit(), region.position() + padding));
+            }
+            return true;
+        }
+
+        /**
+         * Return the position in the file after the current record.
+         *
+         * @return the position in the file after the current record
+         */
+        long position()
+        {
+            return (region == null) ? regionStart : (regionStart + region.position());
+        }
+
+        /**
+         * Return the time of the current record.
+         *
+         * @return the time of the current record, in nanoseconds on the playback timeline
+         */
+        long time()
+        {
+            return time;
+        }
+
+        /**
+         * Return the type of the current record.
+         *
+         * @return the type of the current record
+         */
+        int type()
+        {
+            return type;
+        }
+
+        /**
+         * Return the data of the current record.
+         *
+         * @return the data of the current record
+         */
+        int data()
+        {
+            return data;
+        }
+
+        /**
+         * Return the payload of the current sysex record.
+         *
+         * @return the payload of the current sysex record
+         */
+        byte[] sysex()
+        {
+            return sysex;
+        }
+
+        /**
+         * Close this reader.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        void close() throws IOException
+        {
+            file.close();
+        }
+    }
+}
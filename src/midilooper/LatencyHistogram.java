@@ -0,0 +1,172 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Histogram of latencies in nanoseconds, with logarithmic buckets each split
+ * into linear sub-buckets, in the style of HdrHistogram.
+ *
+ * <p>
+ * Values are kept to within about 3% of their magnitude, from zero up to the
+ * largest <code>long</code>, in a fixed array of counts, so recording a value is
+ * a few arithmetic operations and never allocates.  Only one thread may record
+ * values; other threads may read percentiles at any time, which see every value
+ * recorded before the last update of the total count.
+ * </p>
+ */
+final class LatencyHistogram
+{
+    /** Number of bits of sub-bucket resolution. */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /** Number of sub-buckets per bucket. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Counts, by bucket index. */
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+
+    /** Total count, written after the bucket count so readers see both. */
+    private volatile long count;
+
+    /** Maximum value recorded. */
+    private volatile long maximum;
+
+
+    /**
+     * Record the specified value.  Negative values are recorded as zero.
+     *
+     * @param value value to record, in nanoseconds
+     */
+    void record(final long value)
+    {
+        long v = Math.max(0L, value);
+        counts[indexOf(v)]++;
+        if (v > maximum)
+        {
+            maximum = v;
+        }
+        count = count + 1L;
+    }
+
+    /**
+     * Add the values recorded by the specified histogram to this histogram.  Only
+     * the thread recording values in this histogram may add to it.
+     *
+     * @param histogram histogram to add, must not be null
+     */
+    void add(final LatencyHistogram histogram)
+    {
+        if (histogram == null)
+        {
+            throw new IllegalArgumentException("histogram must not be null");
+        }
+        long added = histogram.count;
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] += histogram.counts[i];
+        }
+        maximum = Math.max(maximum, histogram.maximum);
+        count = count + added;
+    }
+
+    /**
+     * Return the bucket index of the specified value.
+     *
+     * @param value value, at least zero
+     * @return the bucket index of the specified value
+     */
+    static int indexOf(final long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Return the highest value in the bucket with the specified index.
+     *
+     * @param index bucket index
+     * @return the highest value in the bucket with the specified index
+     */
+    static long highestValueOf(final int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        int shift = (index / SUB_BUCKETS) - 1;
+        long lowest = ((long) (index % SUB_BUCKETS) + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1L;
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return the number of values recorded
+     */
+    long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Return the maximum value recorded, or zero if none have been recorded.
+     *
+     * @return the maximum value recorded, in nanoseconds
+     */
+    long getMaximum()
+    {
+        return maximum;
+    }
+
+    /**
+     * Return the value at the specified percentile, the highest value in the bucket
+     * containing it, or zero if no values have been recorded.
+     *
+     * @param percentile percentile, between zero and one hundred
+     * @return the value at the specified percentile, in nanoseconds
+     */
+    long getValueAtPercentile(final double percentile)
+    {
+        long total = count;
+        if (total == 0L)
+        {
+            return 0L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(Math.min(100.0d, percentile) / 100.0d * total));
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= target)
+            {
+                return Math.min(highestValueOf(i), maximum);
+            }
+        }
+        return maximum;
+    }
+}
@@ -22,81 +22,178 @@
 */
 package midilooper;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Stack;
-
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-
-import rwmidi.Controller;
-import rwmidi.MidiInput;
-import rwmidi.MidiOutput;
-import rwmidi.Note;
-import rwmidi.ProgramChange;
-import rwmidi.SysexMessage;
+import java.util.Arrays;
+
+import rwmidi.MidiEvent;
 
 /**
  * Loop.
  */
-public class Loop implements Runnable
+public class Loop extends ScheduledTask
 {
-    /** MIDI input. */
-    private final MidiInput input;
+    /** Maximum number of times a layer is repeated in a bounced loop. */
+    private static final long MAX_REPEATS = 1024L;
+
+    /** Output port. */
+    private final OutputPort output;
+
+    /** Track, mapping recorded channels to output channels. */
+    private final Track track;
 
-    /** MIDI output. */
-    private final MidiOutput output;
+    /** Start of recording, in nanoseconds on the playback timeline. */
+    private final long start;
 
-    /** Output channel. */
-    private final int outputChannel;
+    /** Origin of the cycles of this loop, in nanoseconds on the playback timeline. */
+    private volatile long origin;
 
-    /** Last timestamp, in milliseconds. */
-    private long last;
+    /** Length of this loop is <code>period / divisor</code>; period is <code>-1L</code> while recording. */
+    private volatile long period;
+
+    /** Length of this loop is <code>period / divisor</code>. */
+    private volatile int divisor;
 
     /** True if this loop is playing. */
-    private boolean playing;
+    private volatile boolean playing;
 
     /** True if this loop is recording. */
-    private boolean recording;
+    private volatile boolean recording;
+
+    /** Playback scheduler. */
+    private final Scheduler scheduler;
 
-    /** Pending completion of loop task. */
-    private ScheduledFuture<?> future;
+    /** Session journal recorded messages are appended to, or <code>null</code> if not journaling. */
+    private final Journal journal;
 
-    /** Executor. */
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    /** Events, in order of offset from the start of this loop, written by the input thread. */
+    private volatile EventBuffer events = new EventBuffer();
 
-    /** List of events. */
-    private final List<Event> events = new ArrayList<Event>();
+    /** Index of the next event to dispatch, accessed only by the scheduler thread. */
+    private int index;
 
+    /** Cycle of the next event to dispatch, accessed only by the scheduler thread. */
+    private long cycle;
+
+    /** Loops bounced into this loop, bottom first, or <code>null</code> if this loop was not bounced. */
+    private Loop[] layers;
+
+    /** Playback transform. */
+    private volatile Transform transform = Transform.IDENTITY;
+
+    /** Transform the index and cycle of the next event were computed with, accessed only by the scheduler thread. */
+    private Transform applied = Transform.IDENTITY;
+
+    /** Notes this loop has left sounding, accessed only by the scheduler thread. */
+    private final ActiveNotes notes = new ActiveNotes();
 
     /**
-     * Create a new loop and start recording.
+     * Output note, <code>channel &lt;&lt; 7 | pitch</code>, the last note on of each recorded
+     * note was sent to, by recorded channel and pitch, or <code>-1</code>, accessed only by
+     * the scheduler thread.
+     */
+    private final int[] targets = unmapped();
+
+    /** Notes held on the input while recording, accessed only by the thread recording. */
+    private final ActiveNotes held = new ActiveNotes();
+
+    /**
+     * Task sending a note off for every note this loop has left sounding once it has stopped,
+     * timestamped to play no earlier than the note ons already sent ahead of time.
+     */
+    private final ScheduledTask release = new ScheduledTask()
+        {
+            /** {@inheritDoc} */
+            long dispatch(final long due)
+            {
+                if (output instanceof OutputBatch)
+                {
+                    ((OutputBatch) output).setLatestTimeStamp();
+                }
+                notes.release(output);
+                Arrays.fill(targets, -1);
+                return UNSCHEDULE;
+            }
+        };
+
+
+    /**
+     * Create a new loop and start recording the messages passed to
+     * {@link #record(long,int,int,int)} and {@link #recordSysex(long,byte[],int,int)}.
      *
-     * @param input MIDI input, must not be null
-     * @param output MIDI output, must not be null
-     * @param outputChannel output channel
+     * @param output output port, must not be null
+     * @param track track, mapping recorded channels to output channels, must not be null
+     * @param scheduler playback scheduler, must not be null
+     * @param start start of recording, in nanoseconds on the playback timeline
+     * @param journal session journal to append recorded messages to, or <code>null</code>
      */
-    public Loop(final MidiInput input, final MidiOutput output, final int outputChannel)
+    Loop(final OutputPort output, final Track track, final Scheduler scheduler, final long start,
+         final Journal journal)
     {
-        if (input == null)
+        if (output == null)
+        {
+            throw new IllegalArgumentException("output must not be null");
+        }
+        if (track == null)
         {
-            throw new IllegalArgumentException("input must not be null");
+            throw new IllegalArgumentException("track must not be null");
         }
+        if (scheduler == null)
+        {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        this.output = output;
+        this.track = track;
+        this.scheduler = scheduler;
+        this.journal = journal;
+
+        this.start = start;
+        origin = start;
+        period = -1L;
+        divisor = 1;
+        playing = false;
+        recording = true;
+    }
+
+    /**
+     * Create a new loop from the specified previously recorded events.
+     *
+     * @param output output port, must not be null
+     * @param track track, mapping recorded channels to output channels, must not be null
+     * @param scheduler playback scheduler, must not be null
+     * @param events events, in order of offset from the start of this loop, must not be null
+     * @param start start of this loop, in nanoseconds on the playback timeline
+     * @param length length of this loop, in nanoseconds
+     */
+    Loop(final OutputPort output, final Track track, final Scheduler scheduler, final EventBuffer events,
+         final long start, final long length)
+    {
         if (output == null)
         {
             throw new IllegalArgumentException("output must not be null");
         }
-        this.input = input;
+        if (track == null)
+        {
+            throw new IllegalArgumentException("track must not be null");
+        }
+        if (scheduler == null)
+        {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        if (events == null)
+        {
+            throw new IllegalArgumentException("events must not be null");
+        }
         this.output = output;
-        this.outputChannel = outputChannel;
-
-        last = System.currentTimeMillis();
+        this.track = track;
+        this.scheduler = scheduler;
+        this.journal = null;
+        this.events = events;
+
+        this.start = start;
+        origin = start;
+        period = length;
+        divisor = 1;
         playing = false;
-        recording = true;
-        input.plug(this);
+        recording = false;
     }
 
 
@@ -104,27 +201,509 @@ public class Loop implements Runnable
      * Stop this loop.
      */
     void stop()
+    {
+        stop(scheduler.now());
+    }
+
+    /**
+     * Stop this loop, ending the recording, if any, at the specified time.  A note
+     * off is sent, in one batch from the scheduler thread, for every note this loop
+     * has left sounding.
+     *
+     * @param time time to end the recording at, in nanoseconds on the playback timeline
+     */
+    void stop(final long time)
+    {
+        stop(time, true);
+    }
+
+    /**
+     * Stop this loop, ending the recording, if any, at the specified time, and
+     * optionally send a note off for every note this loop has left sounding.
+     * Notes are left sounding when another loop playing the same events, such as
+     * a bounced loop, takes over from this loop and sends their note offs.  Notes
+     * still held on the input when the recording ends are ended at the loop
+     * boundary, so that they sustain across the wrap rather than sounding again
+     * every cycle without a note off.  Input must have stopped being recorded into
+     * this loop, as the notes are ended on the calling thread.
+     *
+     * @param time time to end the recording at, in nanoseconds on the playback timeline
+     * @param releaseNotes true to send a note off for every note this loop has left sounding
+     */
+    void stop(final long time, final boolean releaseNotes)
     {
         if (playing)
         {
             playing = false;
-            System.out.println(this.hashCode() + " cancelling loop task...");
-            future.cancel(true);
+            scheduler.cancel(this);
+            if (releaseNotes)
+            {
+                releaseNotes();
+            }
         }
         if (recording)
         {
             recording = false;
-            // unplug input?
+            period = time - start;
+            for (int key = held.poll(); key >= 0; key = held.poll())
+            {
+                if (period > 0L)
+                {
+                    events.add(period, MidiEvent.NOTE_OFF | (key >>> 7), key & 0x7F, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the events of this loop with a copy trimmed to their exact size.
+     * Must be called after recording has stopped, while this loop is not playing.
+     */
+    void compact()
+    {
+        if (!recording)
+        {
+            events = events.compact();
+        }
+    }
+
+    /**
+     * Stop this loop and release its events.  This loop should not be played
+     * after it has been released.
+     */
+    void release()
+    {
+        stop();
+        events = new EventBuffer();
+        if (layers != null)
+        {
+            for (Loop layer : layers)
+            {
+                layer.release();
+            }
+            layers = null;
+        }
+    }
+
+    /**
+     * Arrange the recorded events of this loop on the timeline of the specified
+     * master loop, with a length snapped to the nearest integer multiple or
+     * fraction of the length of the master loop.  If quantize is greater than
+     * zero, note on events are moved to the nearest of <code>quantize</code>
+     * divisions of the length of the master loop, and their note off events
+     * by the same amount.  Must be called after recording has stopped and
+     * before this loop first plays.
+     *
+     * @param master master loop, or <code>null</code> if this loop is the master loop
+     * @param quantize number of divisions of the length of the master loop to
+     *    quantize to, or zero for no quantization
+     */
+    void arrange(final Loop master, final int quantize)
+    {
+        if (period <= 0L)
+        {
+            return;
+        }
+        long masterLength = (master == null) ? period : master.getLength();
+        if ((master != null) && (masterLength > 0L))
+        {
+            if (period >= masterLength)
+            {
+                period = masterLength * Math.max(1L, Math.round(period / (double) masterLength));
+            }
+            else
+            {
+                divisor = (int) Math.max(1L, Math.round(masterLength / (double) period));
+                period = masterLength;
+            }
+            origin = master.origin;
+        }
+        long grid = (quantize > 0) ? (masterLength / quantize) : 0L;
+        events = events.arrange(start - origin, period, divisor, grid);
+    }
+
+    /**
+     * Return a copy of this loop on the timeline of this loop, sharing its events,
+     * that plays to the specified output port from the specified scheduler.  Must
+     * be called after recording has stopped.
+     *
+     * @param output output port, must not be null
+     * @param scheduler playback scheduler, must not be null
+     * @return a copy of this loop
+     */
+    Loop copy(final OutputPort output, final Scheduler scheduler)
+    {
+        Loop copy = new Loop(output, track, scheduler, events, origin, period);
+        copy.divisor = divisor;
+        copy.transform = transform;
+        return copy;
+    }
+
+    /**
+     * Bounce the specified loops into a new loop on the same timeline, whose events
+     * are those of every loop merged in order, each loop repeated up to the least
+     * common multiple of their lengths.  The loops must have stopped recording and
+     * share a track and an origin, as the loops of a loop stack above the master
+     * loop do.  The new loop keeps the loops as its layers, so that it can be
+     * un-bounced, and their transform, which must be the same for every loop.
+     *
+     * @param layers loops to bounce, bottom first, must not be null
+     * @return a new loop bouncing the specified loops, or <code>null</code> if they
+     *    cannot be bounced or the least common multiple of their lengths is too long
+     */
+    static Loop bounce(final Loop[] layers)
+    {
+        if (layers == null)
+        {
+            throw new IllegalArgumentException("layers must not be null");
+        }
+        if (layers.length == 0)
+        {
+            return null;
+        }
+        Loop first = layers[0];
+        long gcd = 0L;
+        long divisor = 1L;
+        for (Loop layer : layers)
+        {
+            if (layer.recording || (layer.period <= 0L) || (layer.track != first.track) || (layer.origin != first.origin)
+                || (layer.transform != first.transform))
+            {
+                return null;
+            }
+            gcd = gcd(gcd, layer.period);
+            divisor = lcm(divisor, layer.divisor);
+        }
+        if ((divisor <= 0L) || (divisor > Integer.MAX_VALUE))
+        {
+            return null;
+        }
+        // lengths in units of gcd / divisor, so that they are all integers
+        long[] units = new long[layers.length];
+        long period = 1L;
+        for (int i = 0; i < layers.length; i++)
+        {
+            units[i] = (layers[i].period / gcd) * (divisor / layers[i].divisor);
+            period = lcm(period, units[i]);
+            if ((period <= 0L) || (period > Long.MAX_VALUE / gcd))
+            {
+                return null;
+            }
+        }
+
+        EventBuffer[] buffers = new EventBuffer[layers.length];
+        long[] periods = new long[layers.length];
+        int[] divisors = new int[layers.length];
+        long[] repeats = new long[layers.length];
+        for (int i = 0; i < layers.length; i++)
+        {
+            buffers[i] = layers[i].events;
+            periods[i] = layers[i].period;
+            divisors[i] = layers[i].divisor;
+            repeats[i] = period / units[i];
+            if (repeats[i] > MAX_REPEATS)
+            {
+                return null;
+            }
+        }
+        Loop bounced = new Loop(first.output, first.track, first.scheduler,
+                                EventBuffer.merge(buffers, periods, divisors, repeats), first.origin, period * gcd);
+        bounced.divisor = (int) divisor;
+        bounced.layers = layers.clone();
+        bounced.transform = first.transform;
+        return bounced;
+    }
+
+    /**
+     * Return the greatest common divisor of the specified values.
+     *
+     * @param a first value, at least zero
+     * @param b second value, at least zero
+     * @return the greatest common divisor of the specified values
+     */
+    private static long gcd(final long a, final long b)
+    {
+        return (b == 0L) ? a : gcd(b, a % b);
+    }
+
+    /**
+     * Return the least common multiple of the specified values, or <code>-1L</code> on overflow.
+     *
+     * @param a first value, greater than zero
+     * @param b second value, greater than zero
+     * @return the least common multiple of the specified values, or <code>-1L</code> on overflow
+     */
+    private static long lcm(final long a, final long b)
+    {
+        long multiple = a / gcd(a, b);
+        return (multiple > Long.MAX_VALUE / b) ? -1L : multiple * b;
+    }
+
+    /**
+     * Return the loops bounced into this loop, bottom first, or <code>null</code> if this loop was not bounced.
+     *
+     * @return the loops bounced into this loop, bottom first, or <code>null</code> if this loop was not bounced
+     */
+    Loop[] getLayers()
+    {
+        return (layers == null) ? null : layers.clone();
+    }
+
+    /**
+     * Return the playback transform of this loop.
+     *
+     * @return the playback transform of this loop
+     */
+    Transform getTransform()
+    {
+        return transform;
+    }
+
+    /**
+     * Set the playback transform of this loop, taking effect from its next event.
+     *
+     * @param transform playback transform, must not be null
+     */
+    void setTransform(final Transform transform)
+    {
+        if (transform == null)
+        {
+            throw new IllegalArgumentException("transform must not be null");
         }
+        this.transform = transform;
     }
 
     /**
-     * Play this loop.
+     * Return the track of this loop.
+     *
+     * @return the track of this loop
+     */
+    Track getTrack()
+    {
+        return track;
+    }
+
+    /**
+     * Return the events of this loop.
+     *
+     * @return the events of this loop
+     */
+    EventBuffer getEvents()
+    {
+        return events;
+    }
+
+    /**
+     * Return the origin of the cycles of this loop, in nanoseconds on the playback timeline.
+     *
+     * @return the origin of the cycles of this loop, in nanoseconds on the playback timeline
+     */
+    long getOrigin()
+    {
+        return origin;
+    }
+
+    /**
+     * Return the length of this loop in nanoseconds, or <code>-1L</code> while recording.
+     *
+     * @return the length of this loop in nanoseconds, or <code>-1L</code> while recording
+     */
+    long getLength()
+    {
+        return (period < 0L) ? -1L : (period / divisor);
+    }
+
+    /**
+     * Play this loop, in phase with its timeline.
      */
     void play()
+    {
+        play(scheduler.now());
+    }
+
+    /**
+     * Play this loop, in phase with its timeline, starting with the first event
+     * due at or after the specified time.
+     *
+     * @param time time to start playing from, in nanoseconds on the playback timeline
+     */
+    void play(final long time)
+    {
+        playing = true;
+        if (events.isEmpty() || (period <= 0L))
+        {
+            return;
+        }
+        seek(time);
+        scheduler.schedule(this, deadline());
+    }
+
+    /**
+     * Move the next event to dispatch to the first event due at or after the
+     * specified time, stretched by the current transform.
+     *
+     * @param time time, in nanoseconds on the playback timeline
+     */
+    private void seek(final long time)
+    {
+        applied = transform;
+        long numerator = applied.getStretchNumerator();
+        long denominator = applied.getStretchDenominator();
+        long elapsed = time - origin;
+        cycle = cycleOf(elapsed, period * numerator, divisor * (int) denominator);
+        long position = elapsed - cycleStart(cycle, period * numerator, divisor * (int) denominator);
+        // first event whose stretched offset is at or after the position
+        index = events.indexOf((position * denominator + numerator - 1L) / numerator);
+        if (index == events.size())
+        {
+            index = 0;
+            cycle++;
+        }
+    }
+
+    /**
+     * Send, from the scheduler thread, a note off for every note this loop has left
+     * sounding.  Must be called after this loop has stopped.
+     */
+    void releaseNotes()
+    {
+        scheduler.schedule(release, scheduler.now());
+    }
+
+    /**
+     * Take over from the specified loop the notes it has left sounding that this
+     * loop ends, so that this loop sends their note offs.  Each note is taken over
+     * by one loop only, the first to call this method whose events end it; notes
+     * no loop takes over are left to the specified loop to release.  Both loops
+     * must have stopped, and this loop must not play until it has taken over.
+     *
+     * @param loop stopped loop to take over the sounding notes of, must not be null
+     */
+    void takeOver(final Loop loop)
+    {
+        if (loop == null)
+        {
+            throw new IllegalArgumentException("loop must not be null");
+        }
+        // once any pending release has run or been unscheduled, neither loop is touched by the scheduler thread
+        scheduler.cancel(loop.release);
+        scheduler.cancel(release);
+        for (int note = 0; note < targets.length; note++)
+        {
+            int target = loop.targets[note];
+            if ((target >= 0) && (targets[note] < 0) && loop.notes.contains(target >>> 7, target & 0x7F) && ends(note))
+            {
+                loop.targets[note] = -1;
+                loop.notes.update(MidiEvent.NOTE_OFF | (target >>> 7), target & 0x7F, 0);
+                targets[note] = target;
+                notes.update(MidiEvent.NOTE_ON | (target >>> 7), target & 0x7F, 127);
+            }
+        }
+    }
+
+    /**
+     * Return true if the events of this loop contain a note off, or a note on with
+     * zero velocity, for the specified recorded note.
+     *
+     * @param note recorded note, <code>channel &lt;&lt; 7 | pitch</code>
+     * @return true if the events of this loop end the specified recorded note
+     */
+    private boolean ends(final int note)
+    {
+        EventBuffer events = this.events;
+        for (int i = 0, size = events.size(); i < size; i++)
+        {
+            int message = events.message(i);
+            int command = EventBuffer.status(message) & 0xF0;
+            if ((note(message) == note) && ((command == MidiEvent.NOTE_OFF)
+                                            || ((command == MidiEvent.NOTE_ON) && (EventBuffer.data2(message) == 0))))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mark this loop as playing without scheduling it, while rebuilding a loop stack.
+     * The next call to {@link #restart(long)} schedules it.
+     */
+    void cue()
     {
         playing = true;
-        future = executor.scheduleWithFixedDelay(this, 1L, 1L, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Move the origin of the cycles of this loop, without rescheduling it.
+     *
+     * @param origin new origin of the cycles of this loop, in nanoseconds on the playback timeline
+     */
+    void rebase(final long origin)
+    {
+        this.origin = origin;
+    }
+
+    /**
+     * Restart this loop with its cycles starting from the specified origin.
+     *
+     * @param origin new origin of the cycles of this loop, in nanoseconds on the playback timeline
+     */
+    void restart(final long origin)
+    {
+        if (playing)
+        {
+            scheduler.cancel(this);
+            this.origin = origin;
+            play(origin);
+        }
+        else
+        {
+            this.origin = origin;
+        }
+    }
+
+    /**
+     * Return the deadline of the next event, <code>origin + cycle * length + offset</code>,
+     * with the length and offset stretched by the applied transform.
+     *
+     * @return the deadline of the next event, in nanoseconds
+     */
+    private long deadline()
+    {
+        long numerator = applied.getStretchNumerator();
+        long denominator = applied.getStretchDenominator();
+        return origin + cycleStart(cycle, period * numerator, divisor * (int) denominator)
+            + (events.offset(index) * numerator) / denominator;
+    }
+
+    /**
+     * Return the cycle containing the specified position on a timeline.
+     *
+     * @param position position from the origin of the timeline, in nanoseconds
+     * @param period period
+     * @param divisor divisor, cycle length is <code>period / divisor</code>
+     * @return the cycle containing the specified position
+     */
+    static long cycleOf(final long position, final long period, final int divisor)
+    {
+        long scaled = position * divisor;
+        long cycle = scaled / period;
+        return ((scaled % period) < 0L) ? cycle - 1L : cycle;
+    }
+
+    /**
+     * Return the start of the specified cycle on a timeline.  Computing the
+     * start from the cycle rather than summing lengths keeps fractional cycle
+     * lengths from drifting.
+     *
+     * @param cycle cycle
+     * @param period period
+     * @param divisor divisor, cycle length is <code>period / divisor</code>
+     * @return the start of the specified cycle from the origin of the timeline, in nanoseconds
+     */
+    static long cycleStart(final long cycle, final long period, final int divisor)
+    {
+        return (cycle * period) / divisor;
     }
 
     /**
@@ -148,106 +727,187 @@ public class Loop implements Runnable
     }
 
     /** {@inheritDoc} */
-    public void run()
+    long dispatch(final long due)
     {
-        for (Event event : events)
+        Transform transform = this.transform;
+        if (!transform.sameStretch(applied))
+        {
+            // keep the phase of the timeline, moving to the next event at the new stretch
+            seek(due);
+            return deadline();
+        }
+        int size = events.size();
+        long offset = events.offset(index);
+        do
+        {
+            send(events.message(index), transform);
+            index++;
+        }
+        while ((index < size) && (events.offset(index) == offset));
+
+        if (index == size)
         {
-            event.run();
+            index = 0;
+            cycle++;
         }
+        return deadline();
+    }
+
+    /** {@inheritDoc} */
+    boolean isTimestamped()
+    {
+        return (output instanceof OutputBatch) && ((OutputBatch) output).isTimestamped();
     }
 
     /**
-     * Note on callback.
+     * Send the specified packed message to the output port, through the specified transform.
      *
-     * @param note note
+     * @param message packed message
+     * @param transform playback transform
      */
-    public void noteOnReceived(final Note note)
+    private void send(final int message, final Transform transform)
     {
-        if (recording)
+        int status = EventBuffer.status(message);
+        int channel = transform.channel(track.getOutputChannel(status & 0x0F));
+        int pitch;
+        switch (status & 0xF0)
         {
-            long current = System.currentTimeMillis();
-            if ((current - last) > 0)
+        case MidiEvent.NOTE_ON:
+            if (EventBuffer.data2(message) == 0)
+            {
+                endNote(message);
+                break;
+            }
+            pitch = transform.pitch(EventBuffer.data1(message));
+            if (pitch >= 0)
             {
-                events.add(new Wait(current - last));
+                int velocity = transform.velocity(EventBuffer.data2(message));
+                targets[note(message)] = (channel << 7) | pitch;
+                notes.update(MidiEvent.NOTE_ON | channel, pitch, velocity);
+                output.sendNoteOn(channel, pitch, velocity);
             }
-            events.add(new NoteOnEvent(note, output, outputChannel));
-            last = current;
+            break;
+        case MidiEvent.NOTE_OFF:
+            endNote(message);
+            break;
+        case MidiEvent.CONTROL_CHANGE:
+            output.sendController(channel, EventBuffer.data1(message), transform.controller(EventBuffer.data2(message)));
+            break;
+        case MidiEvent.PROGRAM_CHANGE:
+            output.sendProgramChange(channel, EventBuffer.data1(message));
+            break;
+        case MidiEvent.SYSEX_START:
+            output.sendSysex(events.sysexData(), events.sysexOffset(message), events.sysexLength(message));
+            break;
+        default:
+            break;
         }
     }
 
     /**
-     * Note off callback.
+     * End the note of the specified packed note off, or note on with zero velocity,
+     * sending it to the output note its note on was sent to, whatever the transform
+     * is now.  Orphan note offs, such as those of notes crossing the loop boundary
+     * when playback starts mid-loop, are skipped.
      *
-     * @param note note
+     * @param message packed note off, or note on with zero velocity
      */
-    public void noteOffReceived(final Note note)
+    private void endNote(final int message)
     {
-        if (recording)
+        int note = note(message);
+        int target = targets[note];
+        targets[note] = -1;
+        if ((target < 0) || !notes.contains(target >>> 7, target & 0x7F))
         {
-            long current = System.currentTimeMillis();
-            if ((current - last) > 0)
-            {
-                events.add(new Wait(current - last));
-            }
-            events.add(new NoteOffEvent(note, output, outputChannel));
-            last = current;
+            return;
+        }
+        int channel = target >>> 7;
+        int pitch = target & 0x7F;
+        int command = EventBuffer.status(message) & 0xF0;
+        notes.update(command | channel, pitch, 0);
+        if (command == MidiEvent.NOTE_ON)
+        {
+            output.sendNoteOn(channel, pitch, 0);
+        }
+        else
+        {
+            output.sendNoteOff(channel, pitch, EventBuffer.data2(message));
         }
     }
 
     /**
-     * Controller change callback.
+     * Return the recorded note, <code>channel &lt;&lt; 7 | pitch</code>, of the specified packed message.
      *
-     * @param controller controller
+     * @param message packed message
+     * @return the recorded note of the specified packed message
      */
-    public void controllerChangeReceived(final Controller controller)
+    private static int note(final int message)
     {
-        if (recording)
-        {
-            long current = System.currentTimeMillis();
-            if ((current - last) > 0)
-            {
-                events.add(new Wait(current - last));
-            }
-            events.add(new ControllerEvent(controller, output, outputChannel));
-            last = current;
-        }
+        return ((EventBuffer.status(message) & 0x0F) << 7) | EventBuffer.data1(message);
+    }
+
+    /**
+     * Return a new table of output notes, by recorded channel and pitch, with no notes mapped.
+     *
+     * @return a new table of output notes with no notes mapped
+     */
+    private static int[] unmapped()
+    {
+        int[] targets = new int[16 * 128];
+        Arrays.fill(targets, -1);
+        return targets;
+    }
+
+    /**
+     * Record the specified short message, if this loop is recording.
+     *
+     * @param status status byte
+     * @param data1 first data byte
+     * @param data2 second data byte
+     */
+    void record(final int status, final int data1, final int data2)
+    {
+        record(scheduler.now(), status, data1, data2);
     }
 
     /**
-     * Program change callback.
+     * Record the specified short message received at the specified time, if this loop is recording.
      *
-     * @param programChange program change
+     * @param time time the message was received, in nanoseconds on the playback timeline
+     * @param status status byte
+     * @param data1 first data byte
+     * @param data2 second data byte
      */
-    public void programChangeReceived(final ProgramChange programChange)
+    void record(final long time, final int status, final int data1, final int data2)
     {
         if (recording)
         {
-            long current = System.currentTimeMillis();
-            if ((current - last) > 0)
+            held.update(status, data1, data2);
+            events.add(time - start, status, data1, data2);
+            if (journal != null)
             {
-                events.add(new Wait(current - last));
+                journal.append(time, Journal.MESSAGE, EventBuffer.pack(status, data1, data2));
             }
-            events.add(new ProgramChangeEvent(programChange, output, outputChannel));
-            last = current;
         }
     }
 
     /**
-     * Sysex callback.
+     * Record the specified sysex message received at the specified time, if this loop is recording.
      *
-     * @param sysexMessage sysex message
+     * @param time time the message was received, in nanoseconds on the playback timeline
+     * @param data array containing the complete sysex message, including the start and end bytes
+     * @param offset offset of the sysex message in <code>data</code>
+     * @param length length of the sysex message
      */
-    public void sysexReceived(final SysexMessage sysexMessage)
+    void recordSysex(final long time, final byte[] data, final int offset, final int length)
     {
         if (recording)
         {
-            long current = System.currentTimeMillis();
-            if ((current - last) > 0)
+            events.addSysex(time - start, data, offset, length);
+            if (journal != null)
             {
-                events.add(new Wait(current - last));
+                journal.appendSysex(time, data, offset, length);
             }
-            events.add(new SysexEvent(sysexMessage, output, outputChannel));
-            last = current;
         }
     }
 }
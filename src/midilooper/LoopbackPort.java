@@ -0,0 +1,63 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import rwmidi.MidiEvent;
+
+/**
+ * In-memory loopback port, delivering every message sent to it to its listeners
+ * on the sending thread, for running a MIDI looper without MIDI devices.
+ */
+public final class LoopbackPort extends AbstractInputPort implements OutputPort
+{
+
+    /** {@inheritDoc} */
+    public void sendNoteOn(final int channel, final int pitch, final int velocity)
+    {
+        fireShortMessage(MidiEvent.NOTE_ON | channel, pitch, velocity);
+    }
+
+    /** {@inheritDoc} */
+    public void sendNoteOff(final int channel, final int pitch, final int velocity)
+    {
+        fireShortMessage(MidiEvent.NOTE_OFF | channel, pitch, velocity);
+    }
+
+    /** {@inheritDoc} */
+    public void sendController(final int channel, final int controller, final int value)
+    {
+        fireShortMessage(MidiEvent.CONTROL_CHANGE | channel, controller, value);
+    }
+
+    /** {@inheritDoc} */
+    public void sendProgramChange(final int channel, final int program)
+    {
+        fireShortMessage(MidiEvent.PROGRAM_CHANGE | channel, program, 0);
+    }
+
+    /** {@inheritDoc} */
+    public void sendSysex(final byte[] data, final int offset, final int length)
+    {
+        fireSysex(data, offset, length);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Runtime metrics of a MIDI looper.
+ *
+ * <p>
+ * Reading the metrics takes a snapshot of the loop stacks and scans the
+ * histograms; recording them costs the scheduler one histogram update per
+ * dispatch and the output batch one <code>System.nanoTime()</code> call and
+ * one histogram update per message, so they can be left on while playing.
+ * </p>
+ */
+final class LooperMetrics implements LooperMetricsMBean
+{
+    /** MIDI looper. */
+    private final MidiLooper looper;
+
+    /** Playback scheduler. */
+    private final Scheduler scheduler;
+
+    /** Rate of events recorded. */
+    private final Rate recordedRate = new Rate();
+
+    /** Rate of events played. */
+    private final Rate playedRate = new Rate();
+
+
+    /**
+     * Create new metrics for the specified MIDI looper.
+     *
+     * @param looper MIDI looper, must not be null
+     * @param scheduler playback scheduler of the MIDI looper, must not be null
+     */
+    LooperMetrics(final MidiLooper looper, final Scheduler scheduler)
+    {
+        if (looper == null)
+        {
+            throw new IllegalArgumentException("looper must not be null");
+        }
+        if (scheduler == null)
+        {
+            throw new IllegalArgumentException("scheduler must not be null");
+        }
+        this.looper = looper;
+        this.scheduler = scheduler;
+    }
+
+
+    /** {@inheritDoc} */
+    public int getLoopCount()
+    {
+        return looper.getLoopCount();
+    }
+
+    /** {@inheritDoc} */
+    public int getUndoCount()
+    {
+        return looper.getUndoCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getUndoMemory()
+    {
+        return looper.getUndoMemory();
+    }
+
+    /** {@inheritDoc} */
+    public long getEventsRecorded()
+    {
+        return looper.getEventsRecorded();
+    }
+
+    /** {@inheritDoc} */
+    public double getEventsRecordedPerSecond()
+    {
+        return recordedRate.update(getEventsRecorded());
+    }
+
+    /** {@inheritDoc} */
+    public long getEventsPlayed()
+    {
+        long sent = 0L;
+        for (Track track : looper.getTracks())
+        {
+            sent += track.getBatch().getSent();
+        }
+        return sent;
+    }
+
+    /** {@inheritDoc} */
+    public double getEventsPlayedPerSecond()
+    {
+        return playedRate.update(getEventsPlayed());
+    }
+
+    /** {@inheritDoc} */
+    public long[] getLoopEventCounts()
+    {
+        Loop[] loops = looper.getLoops();
+        long[] counts = new long[loops.length];
+        for (int i = 0; i < loops.length; i++)
+        {
+            counts[i] = loops[i].getEvents().size();
+        }
+        return counts;
+    }
+
+    /** {@inheritDoc} */
+    public long[] getLoopMemory()
+    {
+        Loop[] loops = looper.getLoops();
+        long[] memory = new long[loops.length];
+        for (int i = 0; i < loops.length; i++)
+        {
+            memory[i] = loops[i].getEvents().getMemory();
+        }
+        return memory;
+    }
+
+    /** {@inheritDoc} */
+    public long getDispatchCount()
+    {
+        return scheduler.getLateness().getCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getDispatchLatenessP50()
+    {
+        return scheduler.getLateness().getValueAtPercentile(50.0d);
+    }
+
+    /** {@inheritDoc} */
+    public long getDispatchLatenessP99()
+    {
+        return scheduler.getLateness().getValueAtPercentile(99.0d);
+    }
+
+    /** {@inheritDoc} */
+    public long getDispatchLatenessP999()
+    {
+        return scheduler.getLateness().getValueAtPercentile(99.9d);
+    }
+
+    /** {@inheritDoc} */
+    public long getDispatchLatenessMax()
+    {
+        return scheduler.getLateness().getMaximum();
+    }
+
+    /** {@inheritDoc} */
+    public long getSendTimeP50()
+    {
+        return sendTimes().getValueAtPercentile(50.0d);
+    }
+
+    /** {@inheritDoc} */
+    public long getSendTimeP99()
+    {
+        return sendTimes().getValueAtPercentile(99.0d);
+    }
+
+    /** {@inheritDoc} */
+    public long getSendTimeMax()
+    {
+        return sendTimes().getMaximum();
+    }
+
+    /** {@inheritDoc} */
+    public long getCoalescedControllers()
+    {
+        long coalesced = 0L;
+        for (Track track : looper.getTracks())
+        {
+            coalesced += track.getBatch().getCoalesced();
+        }
+        return coalesced;
+    }
+
+    /** {@inheritDoc} */
+    public int getSchedulerQueueDepth()
+    {
+        return scheduler.size();
+    }
+
+    /**
+     * Return the send times of the output ports of all tracks, merged into one histogram.
+     *
+     * @return the send times of the output ports of all tracks
+     */
+    private LatencyHistogram sendTimes()
+    {
+        LatencyHistogram sendTimes = new LatencyHistogram();
+        for (Track track : looper.getTracks())
+        {
+            sendTimes.add(track.getBatch().getSendTimes());
+        }
+        return sendTimes;
+    }
+
+
+    /**
+     * Rate of change of a count, per second.
+     */
+    private static final class Rate
+    {
+        /** Time of the last sample, in nanoseconds. */
+        private long time = System.nanoTime();
+
+        /** Count at the last sample. */
+        private long count;
+
+        /** Rate between the last two samples. */
+        private double rate;
+
+
+        /**
+         * Update this rate with the specified count, if at least a second has passed since the last sample.
+         *
+         * @param count current count
+         * @return the rate between the last two samples, per second, at least zero
+         */
+        synchronized double update(final long count)
+        {
+            long now = System.nanoTime();
+            long elapsed = now - time;
+            if (elapsed >= 1000000000L)
+            {
+                rate = Math.max(0.0d, (count - this.count) * 1.0e9d / elapsed);
+                this.count = count;
+                time = now;
+            }
+            return rate;
+        }
+    }
+}
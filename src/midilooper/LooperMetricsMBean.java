@@ -0,0 +1,167 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Runtime metrics of a MIDI looper, exposed as a JMX MBean.  Latencies and
+ * times are in nanoseconds.
+ */
+public interface LooperMetricsMBean
+{
+
+    /**
+     * Return the number of loops in the loop stack.
+     *
+     * @return the number of loops in the loop stack
+     */
+    int getLoopCount();
+
+    /**
+     * Return the number of loops in the undo stack.
+     *
+     * @return the number of loops in the undo stack
+     */
+    int getUndoCount();
+
+    /**
+     * Return the approximate heap memory used by the events of the loops in the undo stack.
+     *
+     * @return the approximate heap memory used by the events of the loops in the undo stack, in bytes
+     */
+    long getUndoMemory();
+
+    /**
+     * Return the number of events recorded from the input since the MIDI looper was
+     * created.  Events held by loops that were loaded, replayed or bounced are not
+     * counted again, and events discarded from the undo stack are still counted.
+     *
+     * @return the number of events recorded from the input since the MIDI looper was created
+     */
+    long getEventsRecorded();
+
+    /**
+     * Return the number of events recorded per second, since this rate was last read at least a second ago.
+     *
+     * @return the number of events recorded per second
+     */
+    double getEventsRecordedPerSecond();
+
+    /**
+     * Return the number of messages played.
+     *
+     * @return the number of messages played
+     */
+    long getEventsPlayed();
+
+    /**
+     * Return the number of messages played per second, since this rate was last read at least a second ago.
+     *
+     * @return the number of messages played per second
+     */
+    double getEventsPlayedPerSecond();
+
+    /**
+     * Return the number of events in each loop of the loop stack, from the master loop up.
+     *
+     * @return the number of events in each loop of the loop stack
+     */
+    long[] getLoopEventCounts();
+
+    /**
+     * Return the approximate heap memory used by the events of each loop of the loop stack,
+     * from the master loop up, in bytes.
+     *
+     * @return the approximate heap memory used by the events of each loop of the loop stack, in bytes
+     */
+    long[] getLoopMemory();
+
+    /**
+     * Return the number of scheduler dispatches.
+     *
+     * @return the number of scheduler dispatches
+     */
+    long getDispatchCount();
+
+    /**
+     * Return the median lateness of scheduler dispatches.
+     *
+     * @return the median lateness of scheduler dispatches, in nanoseconds
+     */
+    long getDispatchLatenessP50();
+
+    /**
+     * Return the 99th percentile lateness of scheduler dispatches.
+     *
+     * @return the 99th percentile lateness of scheduler dispatches, in nanoseconds
+     */
+    long getDispatchLatenessP99();
+
+    /**
+     * Return the 99.9th percentile lateness of scheduler dispatches.
+     *
+     * @return the 99.9th percentile lateness of scheduler dispatches, in nanoseconds
+     */
+    long getDispatchLatenessP999();
+
+    /**
+     * Return the maximum lateness of scheduler dispatches.
+     *
+     * @return the maximum lateness of scheduler dispatches, in nanoseconds
+     */
+    long getDispatchLatenessMax();
+
+    /**
+     * Return the median time taken to send a message to the output port of a track.
+     *
+     * @return the median time taken to send a message to the output port of a track, in nanoseconds
+     */
+    long getSendTimeP50();
+
+    /**
+     * Return the 99th percentile time taken to send a message to the output port of a track.
+     *
+     * @return the 99th percentile time taken to send a message to the output port of a track, in nanoseconds
+     */
+    long getSendTimeP99();
+
+    /**
+     * Return the maximum time taken to send a message to the output port of a track.
+     *
+     * @return the maximum time taken to send a message to the output port of a track, in nanoseconds
+     */
+    long getSendTimeMax();
+
+    /**
+     * Return the number of controller changes dropped because a later value was sent at the same time.
+     *
+     * @return the number of controller changes dropped because a later value was sent at the same time
+     */
+    long getCoalescedControllers();
+
+    /**
+     * Return the number of tasks in the scheduler queue.
+     *
+     * @return the number of tasks in the scheduler queue
+     */
+    int getSchedulerQueueDepth();
+}
@@ -22,8 +22,27 @@
 */
 package midilooper;
 
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Stack;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Transmitter;
+
 import rwmidi.MidiInput;
 import rwmidi.MidiOutput;
 
@@ -32,14 +51,32 @@ import rwmidi.MidiOutput;
  */
 public final class MidiLooper
 {
-    /** MIDI input. */
-    private final MidiInput input;
+    /** Default maximum number of loops in the undo stack. */
+    public static final int DEFAULT_UNDO_DEPTH = 16;
+
+    /** Default memory budget of the undo stack, in kilobytes. */
+    public static final int DEFAULT_UNDO_BUDGET = 64 * 1024;
+
+    /** Number of MIDI loopers that have registered their runtime metrics. */
+    private static final AtomicInteger REGISTERED = new AtomicInteger();
 
-    /** MIDI output. */
-    private final MidiOutput output;
+    /** Input port. */
+    private final InputPort input;
 
-    /** Output channel. */
-    private final int outputChannel;
+    /**
+     * Input port created by this MIDI looper, closed when it is disposed, or
+     * <code>null</code>.
+     */
+    private RwmidiInputPort createdInput;
+
+    /** Tracks, all played by the playback scheduler. */
+    private final List<Track> tracks = new CopyOnWriteArrayList<Track>();
+
+    /** Track new loops are recorded on. */
+    private Track track;
+
+    /** Input dispatcher, the only listener plugged into the input port. */
+    private final InputDispatcher dispatcher;
 
     /** Stack of loops. */
     private final Stack<Loop> loops = new Stack<Loop>();
@@ -47,6 +84,51 @@ public final class MidiLooper
     /** Undo stack of loops. */
     private final Stack<Loop> undo = new Stack<Loop>();
 
+    /** Maximum number of loops in the undo stack. */
+    private int undoDepth = DEFAULT_UNDO_DEPTH;
+
+    /** Memory budget of the undo stack, in kilobytes. */
+    private int undoBudget = DEFAULT_UNDO_BUDGET;
+
+    /**
+     * Number of loops in the loop stack above which loops are bounced, or zero to
+     * bounce only on demand.
+     */
+    private int bounceThreshold = 0;
+
+    /** Playback scheduler shared by all loops. */
+    private final Scheduler scheduler = new Scheduler();
+
+    /** Number of divisions of the master loop to quantize notes to, or zero for none. */
+    private int quantize = 0;
+
+    /** Clock follower, or <code>null</code> if not following MIDI clock. */
+    private ClockFollower clockFollower;
+
+    /** Clock generator, or <code>null</code> if not sending MIDI clock. */
+    private ClockGenerator clockGenerator;
+
+    /** Master loop the clock generator was started for, or <code>null</code>. */
+    private Loop clockMaster;
+
+    /** Number of beats in the master loop. */
+    private int beatsPerLoop = 4;
+
+    /** Session journal, or <code>null</code> if not journaling. */
+    private Journal journal;
+
+    /** True while the loop stack is being rebuilt from a session journal. */
+    private boolean replaying = false;
+
+    /** Runtime metrics. */
+    private final LooperMetrics metrics;
+
+    /**
+     * Name the runtime metrics are registered under, or <code>null</code> if not
+     * registered.
+     */
+    private ObjectName metricsName;
+
 
     /**
      * Create a new MIDI looper with the specified input and output.
@@ -56,6 +138,22 @@ public final class MidiLooper
      * @param outputChannel output channel
      */
     public MidiLooper(final MidiInput input, final MidiOutput output, final int outputChannel)
+    {
+        this(new RwmidiInputPort(input), new RwmidiOutputPort(output), outputChannel);
+        createdInput = (RwmidiInputPort) this.input;
+    }
+
+    /**
+     * Create a new MIDI looper with the specified input and output ports, for
+     * example {@link JavaxInputPort} and {@link JavaxOutputPort} to use
+     * <code>javax.sound.midi</code> directly, or a {@link LoopbackPort} to run
+     * without MIDI devices.
+     *
+     * @param input input port, must not be null
+     * @param output output port of the first track, must not be null
+     * @param outputChannel output channel of the first track
+     */
+    public MidiLooper(final InputPort input, final OutputPort output, final int outputChannel)
     {
         if (input == null)
         {
@@ -66,8 +164,12 @@ public final class MidiLooper
             throw new IllegalArgumentException("output must not be null");
         }
         this.input = input;
-        this.output = output;
-        this.outputChannel = outputChannel;
+        track = new Track(output, outputChannel);
+        addTrack(track);
+        dispatcher = new InputDispatcher(scheduler, track);
+        metrics = new LooperMetrics(this, scheduler);
+        scheduler.start();
+        input.addListener(dispatcher);
     }
 
 
@@ -77,117 +179,1313 @@ public final class MidiLooper
      */
     public void record()
     {
-        if (loops.empty())
+        record(scheduler.now());
+    }
+
+    /**
+     * Stop recording the current loop, start playing it, and start recording a new loop.
+     */
+    public void overdub()
+    {
+        overdub(scheduler.now());
+    }
+
+    /**
+     * Undo the current loop, unless it is recording.  If the current loop was
+     * bounced, it is un-bounced and its topmost layer undone.
+     */
+    public void undo()
+    {
+        undo(scheduler.now());
+    }
+
+    /**
+     * Redo the last undo operation, unless the current loop is recording.
+     */
+    public void redo()
+    {
+        redo(scheduler.now());
+    }
+
+    /**
+     * Bounce the loops at the top of the loop stack, below the current loop if it
+     * is recording and above the master loop, into one loop.  Only the loops on the
+     * same track as the topmost of them are bounced.  The bounced loop plays the
+     * events of every bounced loop from one timeline, repeating each up to the least
+     * common multiple of their lengths, so playback costs one scheduled task however
+     * many loops were bounced.  It keeps the bounced loops, and the memory they use,
+     * as its layers; undo un-bounces it and then undoes its topmost layer.
+     */
+    public void bounce()
+    {
+        bounce(scheduler.now());
+    }
+
+    /**
+     * Replace the current loop, if it was bounced, with the loops bounced into it.
+     */
+    public void unbounce()
+    {
+        unbounce(scheduler.now());
+    }
+
+    /**
+     * Add the specified track.  Its loops are played by the same scheduler, on
+     * the same timeline, as those of every other track.
+     *
+     * @param track track to add, must not be null
+     * @throws IllegalStateException if the track has already been added to a MIDI looper
+     */
+    public void addTrack(final Track track)
+    {
+        if (track == null)
         {
-            start();
+            throw new IllegalArgumentException("track must not be null");
         }
-        else
+        track.added();
+        scheduler.addBatch(track.getBatch());
+        tracks.add(track);
+    }
+
+    /**
+     * Return the number of tracks.
+     *
+     * @return the number of tracks
+     */
+    public int getTrackCount()
+    {
+        return tracks.size();
+    }
+
+    /**
+     * Return the track at the specified index, in the order they were added,
+     * the first being the track created with this MIDI looper.
+     *
+     * @param index index
+     * @return the track at the specified index
+     */
+    public Track getTrack(final int index)
+    {
+        return tracks.get(index);
+    }
+
+    /**
+     * Select the track new loops are recorded on.  Defaults to the first track.
+     *
+     * @param track track to record new loops on, must have been added to this MIDI looper
+     */
+    public void selectTrack(final Track track)
+    {
+        int index = tracks.indexOf(track);
+        if (index < 0)
         {
-            Loop current = loops.peek();
-            if (current.isRecording())
-            {
-                stop();
-            }
-            else
-            {
-                start();
-            }
+            throw new IllegalArgumentException("track must have been added to this looper");
         }
+        log(scheduler.now(), Journal.TRACK, index);
+        this.track = track;
+        dispatcher.setTrack(track);
     }
 
     /**
-     * Stop recording the current loop, start playing it, and start recording a new loop.
+     * Return the track new loops are recorded on.
+     *
+     * @return the track new loops are recorded on
      */
-    public void overdub()
+    public Track getSelectedTrack()
     {
-        stop();
-        start();
+        return track;
     }
 
     /**
-     * Undo the current loop, unless it is recording.
+     * Set the number of divisions of the length of the master loop, the first loop
+     * in the loop stack, that notes in loops are quantized to when recording stops.
+     * For example, if the master loop is one bar of 4/4, <code>16</code> quantizes
+     * to sixteenth notes.  Defaults to zero, for no quantization.
+     *
+     * @param quantize number of divisions of the length of the master loop to
+     *    quantize notes to, or zero for no quantization, must be at least zero
      */
-    public void undo()
+    public void setQuantize(final int quantize)
     {
-        if (!loops.empty())
+        if (quantize < 0)
         {
-            Loop current = loops.peek();
-            if (current.isPlaying())
-            {
-                loops.pop();
-                current.stop();
-            }
-            undo.push(current);
+            throw new IllegalArgumentException("quantize must be at least zero");
         }
+        log(scheduler.now(), Journal.QUANTIZE, quantize);
+        this.quantize = quantize;
     }
 
     /**
-     * Redo the last undo operation, unless the current loop is recording.
+     * Return the number of divisions of the length of the master loop that notes
+     * in loops are quantized to, or zero for no quantization.
+     *
+     * @return the number of divisions of the length of the master loop that notes
+     *    in loops are quantized to, or zero for no quantization
      */
-    public void redo()
+    public int getQuantize()
     {
-        if (loops.empty())
+        return quantize;
+    }
+
+    /**
+     * Play input through to the output port of the selected track as it is received,
+     * on the channels the track maps it to, as well as recording it.  Only messages
+     * on the input channels of the track are played through.  Messages are sent
+     * from the input thread, without allocation, so monitoring latency is that of
+     * the MIDI devices.  Defaults to false.
+     *
+     * @param thru true to play input through to the selected track
+     */
+    public void setThru(final boolean thru)
+    {
+        dispatcher.setThru(thru);
+    }
+
+    /**
+     * Return true if input is played through to the selected track.
+     *
+     * @return true if input is played through to the selected track
+     */
+    public boolean isThru()
+    {
+        return dispatcher.isThru();
+    }
+
+    /**
+     * Exclude notes of the specified pitch from being played through, or include
+     * them again, such as notes played to control this MIDI looper.  Excluded notes
+     * are still recorded.  No pitches are excluded by default.
+     *
+     * @param pitch pitch, <code>[0..127]</code>
+     * @param exclude true to exclude notes of the specified pitch from being played through
+     */
+    public void setThruExcluded(final int pitch, final boolean exclude)
+    {
+        dispatcher.setThruExcluded(pitch, exclude);
+    }
+
+    /**
+     * Return true if notes of the specified pitch are excluded from being played through.
+     *
+     * @param pitch pitch, <code>[0..127]</code>
+     * @return true if notes of the specified pitch are excluded from being played through
+     */
+    public boolean isThruExcluded(final int pitch)
+    {
+        return dispatcher.isThruExcluded(pitch);
+    }
+
+    /**
+     * Set the lookahead for loops on tracks playing to timestamped output ports, such
+     * as a {@link JavaxOutputPort} created as timestamped for a device that plays
+     * messages at their timestamps.  Their events are sent up to the lookahead ahead of
+     * time, with the time they are due as a timestamp, so a late wake-up of the
+     * playback thread is not heard as long as it is shorter than the lookahead.  Loops
+     * on other tracks are still sent just in time.  Events already sent ahead of time
+     * are played even if their loop is stopped or undone in the meantime.  A new
+     * lookahead takes effect from the next event of each loop.  Defaults to zero, for
+     * no lookahead.
+     *
+     * @param lookahead lookahead, in nanoseconds, must be at least zero
+     */
+    public void setLookahead(final long lookahead)
+    {
+        scheduler.setLookahead(lookahead);
+    }
+
+    /**
+     * Return the lookahead for loops on tracks playing to timestamped output ports.
+     *
+     * @return the lookahead for loops on tracks playing to timestamped output ports,
+     *    in nanoseconds
+     */
+    public long getLookahead()
+    {
+        return scheduler.getLookahead();
+    }
+
+    /**
+     * Set the maximum number of loops in the undo stack.  When the undo stack is
+     * full, the oldest undone loop is evicted and its events released, and can no
+     * longer be redone.  Defaults to {@link #DEFAULT_UNDO_DEPTH}.
+     *
+     * @param undoDepth maximum number of loops in the undo stack, must be at least zero
+     */
+    public void setUndoDepth(final int undoDepth)
+    {
+        if (undoDepth < 0)
         {
-            if (!undo.empty())
-            {
-                Loop last = undo.pop();
-                last.play();
-                loops.push(last);
-            }
+            throw new IllegalArgumentException("undoDepth must be at least zero");
         }
-        else
+        log(scheduler.now(), Journal.UNDO_DEPTH, undoDepth);
+        this.undoDepth = undoDepth;
+        evictUndo();
+    }
+
+    /**
+     * Return the maximum number of loops in the undo stack.
+     *
+     * @return the maximum number of loops in the undo stack
+     */
+    public int getUndoDepth()
+    {
+        return undoDepth;
+    }
+
+    /**
+     * Set the memory budget of the undo stack.  While the events of the undone loops
+     * use more memory than the budget, the oldest undone loop is evicted and its events
+     * released, and can no longer be redone.  Defaults to {@link #DEFAULT_UNDO_BUDGET}.
+     *
+     * @param undoBudget memory budget of the undo stack, in kilobytes, must be at least zero
+     */
+    public void setUndoBudget(final int undoBudget)
+    {
+        if (undoBudget < 0)
         {
-            Loop current = loops.peek();
-            if (!current.isRecording())
+            throw new IllegalArgumentException("undoBudget must be at least zero");
+        }
+        log(scheduler.now(), Journal.UNDO_BUDGET, undoBudget);
+        this.undoBudget = undoBudget;
+        evictUndo();
+    }
+
+    /**
+     * Return the memory budget of the undo stack, in kilobytes.
+     *
+     * @return the memory budget of the undo stack, in kilobytes
+     */
+    public int getUndoBudget()
+    {
+        return undoBudget;
+    }
+
+    /**
+     * Set the number of loops in the loop stack above which loops are bounced
+     * automatically when recording stops or a loop is redone.  Defaults to zero,
+     * to bounce only on demand.
+     *
+     * @see #bounce()
+     * @param bounceThreshold number of loops in the loop stack above which loops are
+     *    bounced, or zero to bounce only on demand, must be at least zero
+     */
+    public void setBounceThreshold(final int bounceThreshold)
+    {
+        if (bounceThreshold < 0)
+        {
+            throw new IllegalArgumentException("bounceThreshold must be at least zero");
+        }
+        log(scheduler.now(), Journal.BOUNCE_THRESHOLD, bounceThreshold);
+        this.bounceThreshold = bounceThreshold;
+    }
+
+    /**
+     * Return the number of loops in the loop stack above which loops are bounced,
+     * or zero to bounce only on demand.
+     *
+     * @return the number of loops in the loop stack above which loops are bounced,
+     *    or zero to bounce only on demand
+     */
+    public int getBounceThreshold()
+    {
+        return bounceThreshold;
+    }
+
+    /**
+     * Follow MIDI clock from the specified transmitter.  Playback and recording
+     * then advance with timing clock messages, at 24 per quarter note; start
+     * restarts all loops from the top at the next timing clock, stop pauses
+     * playback and continue resumes it.  rwmidi drops MIDI clock messages, so
+     * the transmitter should be obtained from <code>javax.sound.midi</code>
+     * for the same device as the MIDI input.
+     *
+     * @param transmitter transmitter to receive MIDI clock from, must not be null
+     */
+    public void followClock(final Transmitter transmitter)
+    {
+        if (transmitter == null)
+        {
+            throw new IllegalArgumentException("transmitter must not be null");
+        }
+        clockFollower = new ClockFollower(scheduler.now(), new ClockFollower.Listener()
             {
-                if (!undo.empty())
+                /** {@inheritDoc} */
+                public void clockStarted(final long position)
                 {
-                    Loop last = undo.pop();
-                    last.play();
-                    loops.push(last);
+                    restart(position);
                 }
-            }
+
+                /** {@inheritDoc} */
+                public void clockChanged()
+                {
+                    scheduler.wake();
+                }
+            });
+        scheduler.setTimeBase(clockFollower);
+        transmitter.setReceiver(clockFollower);
+    }
+
+    /**
+     * Return true if this MIDI looper is following MIDI clock.
+     *
+     * @return true if this MIDI looper is following MIDI clock
+     */
+    public boolean isFollowingClock()
+    {
+        return clockFollower != null;
+    }
+
+    /**
+     * Return the tempo of the MIDI clock being followed, in beats per minute,
+     * or zero if this MIDI looper is not following MIDI clock.
+     *
+     * @return the tempo of the MIDI clock being followed, in beats per minute
+     */
+    public double getTempo()
+    {
+        return (clockFollower == null) ? 0.0d : clockFollower.getTempo();
+    }
+
+    /**
+     * Send MIDI clock to the specified receiver.  While the master loop, the first
+     * loop in the loop stack, is playing, start is sent at the top of its cycle
+     * followed by 24 timing clocks per beat, with the tempo derived from the length
+     * of the master loop and the number of beats per loop.  Stop is sent when the
+     * loop stack empties.  rwmidi cannot send real-time messages, so the receiver
+     * should be obtained from <code>javax.sound.midi</code>.
+     *
+     * @param receiver receiver to send MIDI clock to, must not be null
+     */
+    public void sendClock(final Receiver receiver)
+    {
+        if (clockGenerator != null)
+        {
+            clockGenerator.stop();
         }
+        clockGenerator = new ClockGenerator(receiver, scheduler);
+        clockMaster = null;
+        updateClock();
     }
 
     /**
-     * Return the number of loops in the loop stack.
+     * Set the number of beats in the master loop, used to derive the tempo of the MIDI
+     * clock sent by this MIDI looper.  Defaults to <code>4</code>.
      *
-     * @return the number of loops in the loop stack
+     * @param beatsPerLoop number of beats in the master loop, must be at least one
      */
-    public int getLoopCount()
+    public void setBeatsPerLoop(final int beatsPerLoop)
     {
-        return loops.size();
+        if (beatsPerLoop < 1)
+        {
+            throw new IllegalArgumentException("beatsPerLoop must be at least one");
+        }
+        this.beatsPerLoop = beatsPerLoop;
+        clockMaster = null;
+        updateClock();
     }
 
     /**
-     * Return the number of loops in the undo stack.
+     * Return the number of beats in the master loop.
      *
-     * @return the number of loops in the undo stack
+     * @return the number of beats in the master loop
      */
-    public int getUndoCount()
+    public int getBeatsPerLoop()
     {
-        return undo.size();
+        return beatsPerLoop;
+    }
+
+    /**
+     * Return the tick interval jitter statistics for the MIDI clock sent by this MIDI
+     * looper, the difference between each measured interval between timing clocks and
+     * the expected interval, or <code>null</code> if this MIDI looper is not sending
+     * MIDI clock.
+     *
+     * @return the tick interval jitter statistics for the MIDI clock sent by this MIDI
+     *    looper, or <code>null</code> if this MIDI looper is not sending MIDI clock
+     */
+    public JitterStatistics getClockJitter()
+    {
+        return (clockGenerator == null) ? null : clockGenerator.getJitter();
     }
 
     /**
-     * Start recording a new loop.
+     * Save the loop stack to the specified file, as a type 1 standard MIDI file
+     * with a tempo track followed by one track per loop.  A loop that is still
+     * recording is not saved.
+     *
+     * @param file file to save to, must not be null
+     * @throws IOException if an I/O error occurs
      */
-    private void start()
+    public void save(final File file) throws IOException
     {
-        loops.push(new Loop(input, output, outputChannel));
+        List<Loop> saved = new ArrayList<Loop>(loops.size());
+        for (Loop loop : loops)
+        {
+            if (!loop.isRecording())
+            {
+                saved.add(loop);
+            }
+        }
+        long quarterLength = StandardMidiFile.DEFAULT_QUARTER_LENGTH;
+        if (!saved.isEmpty())
+        {
+            quarterLength = saved.get(0).getLength() / beatsPerLoop;
+        }
+        StandardMidiFile.write(saved, quarterLength, file);
     }
 
     /**
-     * Stop recording the current loop and start playing it.
+     * Replace the loop stack with the loops loaded from the specified standard MIDI
+     * file, on the selected track, and start playing them from the top.  Each track
+     * with events becomes a loop, with the end of track event marking its length; the
+     * first is the master loop, and the number of beats per loop is taken from its
+     * length and the tempo.  The undo stack is cleared.
+     *
+     * @param file file to load from, must not be null
+     * @throws IOException if an I/O error occurs or the file is not a standard MIDI file
      */
-    private void stop()
+    public void load(final File file) throws IOException
     {
-        if (!loops.empty())
+        StandardMidiFile midiFile = StandardMidiFile.read(file);
+        dispatcher.setRecording(null);
+        for (Loop loop : loops)
         {
-            Loop current = loops.peek();
-            current.stop();
-            current.play();
+            loop.stop();
+        }
+        loops.clear();
+        clearUndo();
+
+        long origin = scheduler.now();
+        for (int i = 0, size = midiFile.size(); i < size; i++)
+        {
+            Loop loop = new Loop(track.getBatch(), track, scheduler, midiFile.getEvents(i),
+                                 origin, midiFile.getLength(i));
+            loops.push(loop);
+            Loop master = loops.firstElement();
+            loop.arrange((master == loop) ? null : master, 0);
+            loop.play(origin);
+        }
+        if (!loops.empty())
+        {
+            long length = loops.firstElement().getLength();
+            long beats = Math.round(length / (double) midiFile.getQuarterLength());
+            beatsPerLoop = (int) Math.max(1L, beats);
+        }
+        clockMaster = null;
+        updateClock();
+    }
+
+    /**
+     * Return the length of the master loop, the first loop in the loop stack, in nanoseconds,
+     * or <code>-1L</code> if the loop stack is empty or the master loop is recording.
+     *
+     * @return the length of the master loop, in nanoseconds, or <code>-1L</code>
+     */
+    public long getLoopLength()
+    {
+        Loop[] loops = getLoops();
+        return (loops.length == 0) ? -1L : loops[0].getLength();
+    }
+
+    /**
+     * Render the specified duration of the playing loops to the specified receiver, as fast
+     * as possible rather than in real time, starting at the top of the master loop.  Every
+     * message is sent with its timestamp, in microseconds from the start of the render, and
+     * the messages are those that real-time playback would send, in the same order.  A loop
+     * that is still recording is not rendered.  For example, to render eight cycles of the
+     * master loop, the duration is <code>8 * getLoopLength()</code>.
+     *
+     * @param duration duration to render, in nanoseconds, must be at least zero
+     * @param receiver receiver to send the rendered messages to, must not be null
+     */
+    public void render(final long duration, final Receiver receiver)
+    {
+        if (duration < 0L)
+        {
+            throw new IllegalArgumentException("duration must be at least zero");
+        }
+        new Renderer(getLoops(), getTracks()).render(duration, receiver);
+    }
+
+    /**
+     * Render the specified duration of the playing loops to the specified file, as a
+     * standard MIDI file with a tempo track followed by a single track of the rendered
+     * messages.  See {@link #render(long,Receiver)}.
+     *
+     * @param duration duration to render, in nanoseconds, must be at least zero
+     * @param file file to render to, must not be null
+     * @throws IOException if an I/O error occurs
+     */
+    public void render(final long duration, final File file) throws IOException
+    {
+        if (duration < 0L)
+        {
+            throw new IllegalArgumentException("duration must be at least zero");
+        }
+        if (file == null)
+        {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        Loop[] loops = getLoops();
+        EventBuffer events = new Renderer(loops, getTracks()).render(duration);
+        Loop rendered = new Loop(track.getBatch(), track, scheduler, events, 0L, duration);
+        long masterLength = (loops.length == 0) ? -1L : loops[0].getLength();
+        long quarterLength = StandardMidiFile.DEFAULT_QUARTER_LENGTH;
+        if (masterLength > 0L)
+        {
+            quarterLength = masterLength / beatsPerLoop;
+        }
+        StandardMidiFile.write(Collections.singletonList(rendered), quarterLength, file);
+    }
+
+    /**
+     * Start appending every recorded message and every command to a session journal
+     * in the specified file, replacing any previous journal.  If the file already
+     * contains a journal, for example one replayed after a crash, the new session is
+     * appended to it.  The journal is a memory-mapped file, so appending costs no more
+     * than a few memory writes per message, and what has been appended survives the
+     * process dying.  Journaling should be started before recording the first loop.
+     * Track, channel mapping, transform and load changes are not journaled; see
+     * <code>replay</code>.
+     *
+     * @param file file to journal to, must not be null
+     * @throws IOException if an I/O error occurs
+     */
+    public void journal(final File file) throws IOException
+    {
+        if (file == null)
+        {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        if (journal != null)
+        {
+            journal.close();
+        }
+        journal = new Journal(file);
+        long origin = loops.empty() ? scheduler.now() : loops.firstElement().getOrigin();
+        log(origin, Journal.SESSION, 0);
+        log(origin, Journal.UNDO_DEPTH, undoDepth);
+        log(origin, Journal.UNDO_BUDGET, undoBudget);
+        log(origin, Journal.BOUNCE_THRESHOLD, bounceThreshold);
+    }
+
+    /**
+     * Replace the loop stack and the undo stack with those rebuilt by replaying the
+     * session journal in the specified file, and start playing the rebuilt loops from
+     * the top.  Every command and recorded message is applied again at the time it
+     * was journaled, so the recorded loops are rebuilt exactly; a loop that was still
+     * recording at the end of the journal is stopped at the time of the last record.
+     *
+     * <p>
+     * Tracks, channel mappings, loop transforms and loaded loops are not journaled,
+     * because they refer to output ports, files and transform objects the journal
+     * cannot hold.  Replay records into the tracks this MIDI looper already has, so
+     * tracks and their channel mappings should be set up as they were before replaying;
+     * transforms come back unset, and loops loaded with <code>load</code> are missing
+     * and have to be loaded again.
+     * </p>
+     *
+     * @param file file to replay, must not be null
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if this MIDI looper is journaling
+     */
+    public void replay(final File file) throws IOException
+    {
+        if (file == null)
+        {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        if (journal != null)
+        {
+            throw new IllegalStateException("replay must not be called while journaling");
+        }
+        dispatcher.setRecording(null);
+        for (Loop loop : loops)
+        {
+            loop.stop();
+        }
+        loops.clear();
+        clearUndo();
+
+        Journal.Reader reader = new Journal.Reader(file);
+        replaying = true;
+        try
+        {
+            long time = 0L;
+            while (reader.next())
+            {
+                switch (reader.type())
+                {
+                case Journal.SESSION:
+                    endSession(time);
+                    restart(reader.time());
+                    break;
+                case Journal.RECORD:
+                    record(reader.time());
+                    break;
+                case Journal.OVERDUB:
+                    overdub(reader.time());
+                    break;
+                case Journal.UNDO:
+                    undo(reader.time());
+                    break;
+                case Journal.REDO:
+                    redo(reader.time());
+                    break;
+                case Journal.QUANTIZE:
+                    quantize = reader.data();
+                    break;
+                case Journal.TRACK:
+                    if (reader.data() < tracks.size())
+                    {
+                        track = tracks.get(reader.data());
+                        dispatcher.setTrack(track);
+                    }
+                    break;
+                case Journal.UNDO_DEPTH:
+                    undoDepth = reader.data();
+                    evictUndo();
+                    break;
+                case Journal.UNDO_BUDGET:
+                    undoBudget = reader.data();
+                    evictUndo();
+                    break;
+                case Journal.BOUNCE:
+                    bounce(reader.time());
+                    break;
+                case Journal.UNBOUNCE:
+                    unbounce(reader.time());
+                    break;
+                case Journal.BOUNCE_THRESHOLD:
+                    bounceThreshold = reader.data();
+                    break;
+                case Journal.RESTART:
+                    restart(reader.time());
+                    break;
+                case Journal.MESSAGE:
+                    if (!loops.empty())
+                    {
+                        int message = reader.data();
+                        loops.peek().record(reader.time(), EventBuffer.status(message),
+                                            EventBuffer.data1(message),
+                                            EventBuffer.data2(message));
+                    }
+                    break;
+                case Journal.SYSEX:
+                    if (!loops.empty())
+                    {
+                        byte[] sysex = reader.sysex();
+                        loops.peek().recordSysex(reader.time(), sysex, 0, sysex.length);
+                    }
+                    break;
+                default:
+                    break;
+                }
+                time = reader.time();
+            }
+            endSession(time);
+        }
+        finally
+        {
+            replaying = false;
+            reader.close();
+        }
+        clockMaster = null;
+        restart(scheduler.now());
+    }
+
+    /**
+     * End a replayed session, stopping the current loop at the specified time if it is
+     * still recording.
+     *
+     * @param time time of the last record of the session, in nanoseconds on the
+     *    playback timeline
+     */
+    private void endSession(final long time)
+    {
+        if (!loops.empty() && loops.peek().isRecording())
+        {
+            stop(time);
+        }
+    }
+
+    /**
+     * Return the number of loops in the loop stack.
+     *
+     * @return the number of loops in the loop stack
+     */
+    public int getLoopCount()
+    {
+        return loops.size();
+    }
+
+    /**
+     * Return a snapshot of the loop stack, from the master loop up.
+     *
+     * @return a snapshot of the loop stack
+     */
+    Loop[] getLoops()
+    {
+        return loops.toArray(new Loop[0]);
+    }
+
+    /**
+     * Return a snapshot of the tracks.
+     *
+     * @return a snapshot of the tracks
+     */
+    Track[] getTracks()
+    {
+        return tracks.toArray(new Track[0]);
+    }
+
+    /**
+     * Return the runtime metrics of this MIDI looper.
+     *
+     * @return the runtime metrics of this MIDI looper
+     */
+    public LooperMetricsMBean getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Register the runtime metrics of this MIDI looper with the platform MBean server,
+     * under the name <code>midilooper:type=MidiLooper,id=</code><i>n</i>.  The metrics
+     * are unregistered when this MIDI looper is disposed.
+     *
+     * @return the name the runtime metrics were registered under
+     * @throws JMException if the metrics could not be registered
+     */
+    public ObjectName registerMetrics() throws JMException
+    {
+        if (metricsName == null)
+        {
+            int id = REGISTERED.incrementAndGet();
+            ObjectName name = new ObjectName("midilooper:type=MidiLooper,id=" + id);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        }
+        return metricsName;
+    }
+
+    /**
+     * Return the loop at the specified index in the loop stack, the master loop being
+     * at index zero.
+     *
+     * @param index index in the loop stack
+     * @return the loop at the specified index in the loop stack
+     */
+    Loop getLoop(final int index)
+    {
+        return loops.get(index);
+    }
+
+    /**
+     * Return the playback transform of the loop at the specified index in the loop stack.
+     *
+     * @param index index in the loop stack, the master loop being at index zero
+     * @return the playback transform of the loop at the specified index in the loop stack
+     */
+    public Transform getTransform(final int index)
+    {
+        return loops.get(index).getTransform();
+    }
+
+    /**
+     * Set the playback transform of the loop at the specified index in the loop stack.
+     * The transform is applied to each event as it is played, without changing the
+     * recorded events, and takes effect from the next event of a playing loop.  Loops
+     * are saved and bounced without their transforms being applied, and only loops
+     * with the same transform are bounced together.
+     *
+     * @param index index in the loop stack, the master loop being at index zero
+     * @param transform playback transform, must not be null
+     */
+    public void setTransform(final int index, final Transform transform)
+    {
+        loops.get(index).setTransform(transform);
+    }
+
+    /**
+     * Return the number of loops in the undo stack.
+     *
+     * @return the number of loops in the undo stack
+     */
+    public int getUndoCount()
+    {
+        return undo.size();
+    }
+
+    /**
+     * Return the number of messages recorded from the input since this MIDI looper was created.
+     *
+     * @return the number of messages recorded from the input since this MIDI looper was created
+     */
+    long getEventsRecorded()
+    {
+        return dispatcher.getRecorded();
+    }
+
+    /**
+     * Return the approximate heap memory used by the events of the loops in the undo stack.
+     *
+     * @return the approximate heap memory used by the events of the loops in the undo
+     *    stack, in bytes
+     */
+    long getUndoMemory()
+    {
+        long memory = 0L;
+        synchronized (undo)
+        {
+            for (Loop loop : undo)
+            {
+                memory += loop.getEvents().getMemory();
+            }
+        }
+        return memory;
+    }
+
+    /**
+     * Stop all loops, send a note off for every note left sounding, and release
+     * the playback thread, and the input port if this MIDI looper created it.
+     * This MIDI looper should not be used after it has been disposed.
+     */
+    public void dispose()
+    {
+        input.removeListener(dispatcher);
+        if (createdInput != null)
+        {
+            createdInput.close();
+        }
+        dispatcher.setRecording(null);
+        for (Loop loop : loops)
+        {
+            loop.stop();
+        }
+        if (clockGenerator != null)
+        {
+            clockGenerator.stop();
+        }
+        if (journal != null)
+        {
+            try
+            {
+                journal.close();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+            journal = null;
+        }
+        if (metricsName != null)
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try
+            {
+                server.unregisterMBean(metricsName);
+            }
+            catch (JMException e)
+            {
+                // ignore
+            }
+            metricsName = null;
+        }
+        scheduler.shutdown();
+        // the scheduler thread has finished, so its output batches may be sent from this thread
+        for (Track track : tracks)
+        {
+            track.getBatch().releaseNotes();
+        }
+    }
+
+    /**
+     * Restart all loops with their cycles starting from the specified origin.
+     *
+     * @param origin new origin, in nanoseconds on the playback timeline
+     */
+    private void restart(final long origin)
+    {
+        log(origin, Journal.RESTART, 0);
+        synchronized (loops)
+        {
+            for (Loop loop : loops)
+            {
+                if (replaying)
+                {
+                    loop.rebase(origin);
+                }
+                else
+                {
+                    loop.restart(origin);
+                }
+            }
+        }
+        synchronized (undo)
+        {
+            for (Loop loop : undo)
+            {
+                loop.restart(origin);
+            }
+        }
+        clockMaster = null;
+        updateClock();
+    }
+
+    /**
+     * Append the specified command to the session journal, if journaling and not replaying.
+     *
+     * @param time time of the command, in nanoseconds on the playback timeline
+     * @param type record type
+     * @param data record data
+     */
+    private void log(final long time, final int type, final int data)
+    {
+        if ((journal != null) && !replaying)
+        {
+            journal.append(time, type, data);
+        }
+    }
+
+    /**
+     * Start recording a new loop or stop recording and start playing the current
+     * loop if the current loop is recording, at the specified time.
+     *
+     * @param time time of the command, in nanoseconds on the playback timeline
+     */
+    private void record(final long time)
+    {
+        boolean recording = !loops.empty() && loops.peek().isRecording();
+        synchronized (dispatcher)
+        {
+            // journal while input is held off, in the order the dispatcher applies it
+            log(time, Journal.RECORD, 0);
+            if (recording)
+            {
+                dispatcher.setRecording(null);
+            }
+            else
+            {
+                start(time);
+            }
+        }
+        if (recording)
+        {
+            stop(time);
+        }
+        updateClock();
+    }
+
+    /**
+     * Stop recording the current loop, start playing it, and start recording a new loop,
+     * at the specified time.
+     *
+     * @param time time of the command, in nanoseconds on the playback timeline
+     */
+    private void overdub(final long time)
+    {
+        synchronized (dispatcher)
+        {
+            // journal while input is held off, in the order the dispatcher applies it
+            log(time, Journal.OVERDUB, 0);
+            dispatcher.setRecording(null);
+        }
+        stop(time);
+        start(time);
+        updateClock();
+    }
+
+    /**
+     * Undo the current loop, unless it is recording, at the specified time.  The
+     * undone loop is compacted, and the oldest undone loops evicted if the undo
+     * stack is then over its depth or memory budget.
+     *
+     * @param time time of the command, in nanoseconds on the playback timeline
+     */
+    private void undo(final long time)
+    {
+        log(time, Journal.UNDO, 0);
+        if (!loops.empty())
+        {
+            Loop current = loops.peek();
+            if (!current.isRecording())
+            {
+                if (current.getLayers() != null)
+                {
+                    split(time);
+                    current = loops.peek();
+                }
+                loops.pop();
+                current.stop(time);
+                current.compact();
+                undo.push(current);
+                evictUndo();
+            }
+        }
+        updateClock();
+    }
+
+    /**
+     * Bounce the loops at the top of the loop stack at the specified time.
+     *
+     * @param time time of the command, in nanoseconds on the playback timeline
+     */
+    private void bounce(final long time)
+    {
+        log(time, Journal.BOUNCE, 0);
+        merge(time);
+    }
+
+    /**
+     * Replace the current loop, if it was bounced, with the loops bounced into it, at
+     * the specified time.
+     *
+     * @param time time of the command, in nanoseconds on the playback timeline
+     */
+    private void unbounce(final long time)
+    {
+        log(time, Journal.UNBOUNCE, 0);
+        if (!loops.empty() && (loops.peek().getLayers() != null))
+        {
+            split(time);
+        }
+    }
+
+    /**
+     * Bounce the loops at the top of the loop stack, below the current loop if it is
+     * recording and above the master loop, and on the same track as the topmost of
+     * them, into one loop playing from the specified time.
+     *
+     * @param time time to start playing the bounced loop from, in nanoseconds on the
+     *    playback timeline
+     */
+    private void merge(final long time)
+    {
+        int top = loops.size() - 1;
+        if ((top >= 0) && loops.get(top).isRecording())
+        {
+            top--;
+        }
+        if (top < 2)
+        {
+            return;
+        }
+        Track layerTrack = loops.get(top).getTrack();
+        int bottom = top;
+        while ((bottom > 1) && (loops.get(bottom - 1).getTrack() == layerTrack))
+        {
+            bottom--;
+        }
+        if (bottom == top)
+        {
+            return;
+        }
+        Loop[] layers = loops.subList(bottom, top + 1).toArray(new Loop[0]);
+        Loop bounced = Loop.bounce(layers);
+        if (bounced == null)
+        {
+            return;
+        }
+        synchronized (loops)
+        {
+            for (Loop layer : layers)
+            {
+                layer.stop(time, false);
+                loops.remove(layer);
+            }
+            loops.add(bottom, bounced);
+        }
+        for (Loop layer : layers)
+        {
+            bounced.takeOver(layer);
+            layer.releaseNotes();
+        }
+        play(bounced, time);
+    }
+
+    /**
+     * Replace the current loop, which must have been bounced, with the loops
+     * bounced into it, playing in phase from the specified time.
+     *
+     * @param time time to start playing the loops from, in nanoseconds on the playback timeline
+     */
+    private void split(final long time)
+    {
+        Loop bounced = loops.pop();
+        bounced.stop(time, false);
+        for (Loop layer : bounced.getLayers())
+        {
+            layer.rebase(bounced.getOrigin());
+            layer.takeOver(bounced);
+            play(layer, time);
+            loops.push(layer);
+        }
+        bounced.releaseNotes();
+    }
+
+    /**
+     * Bounce loops if the loop stack has more loops than the bounce threshold.
+     *
+     * @param time time to start playing the bounced loop from, in nanoseconds on the
+     *    playback timeline
+     */
+    private void bounceOverThreshold(final long time)
+    {
+        if ((bounceThreshold > 0) && (loops.size() > bounceThreshold))
+        {
+            merge(time);
+        }
+    }
+
+    /**
+     * Evict the oldest loops from the undo stack, releasing their events, until it
+     * is within its depth and memory budget.
+     */
+    private void evictUndo()
+    {
+        long budget = 1024L * undoBudget;
+        while ((undo.size() > undoDepth) || (!undo.empty() && (getUndoMemory() > budget)))
+        {
+            undo.remove(0).release();
+        }
+    }
+
+    /**
+     * Clear the undo stack, releasing the events of its loops.
+     */
+    private void clearUndo()
+    {
+        while (!undo.empty())
+        {
+            undo.pop().release();
+        }
+    }
+
+    /**
+     * Redo the last undo operation, unless the current loop is recording, at the
+     * specified time.
+     *
+     * @param time time of the command, in nanoseconds on the playback timeline
+     */
+    private void redo(final long time)
+    {
+        log(time, Journal.REDO, 0);
+        if (loops.empty())
+        {
+            if (!undo.empty())
+            {
+                Loop last = undo.pop();
+                play(last, time);
+                loops.push(last);
+            }
+        }
+        else
+        {
+            Loop current = loops.peek();
+            if (!current.isRecording())
+            {
+                if (!undo.empty())
+                {
+                    Loop last = undo.pop();
+                    play(last, time);
+                    loops.push(last);
+                    bounceOverThreshold(time);
+                }
+            }
+        }
+        updateClock();
+    }
+
+    /**
+     * Play the specified loop from the specified time, or only cue it while replaying.
+     *
+     * @param loop loop to play
+     * @param time time to start playing from, in nanoseconds on the playback timeline
+     */
+    private void play(final Loop loop, final long time)
+    {
+        if (replaying)
+        {
+            loop.cue();
+        }
+        else
+        {
+            loop.play(time);
+        }
+    }
+
+    /**
+     * Start or stop the clock generator, if any, to follow the master loop.
+     */
+    private void updateClock()
+    {
+        if ((clockGenerator != null) && !replaying)
+        {
+            Loop master = loops.empty() ? null : loops.firstElement();
+            if ((master == null) || !master.isPlaying() || (master.getLength() <= 0L))
+            {
+                clockGenerator.stop();
+                clockMaster = null;
+            }
+            else if (master != clockMaster)
+            {
+                clockGenerator.start(master.getOrigin(), master.getLength(), beatsPerLoop,
+                                     scheduler.now());
+                clockMaster = master;
+            }
+        }
+    }
+
+    /**
+     * Start recording a new loop at the specified time.
+     *
+     * @param time time to start recording at, in nanoseconds on the playback timeline
+     */
+    private void start(final long time)
+    {
+        if (replaying)
+        {
+            loops.push(new Loop(track.getBatch(), track, scheduler, time, null));
+        }
+        else
+        {
+            Loop loop = new Loop(track.getBatch(), track, scheduler, time, journal);
+            loops.push(loop);
+            dispatcher.setRecording(loop);
+        }
+    }
+
+    /**
+     * Stop recording the current loop and start playing it.  The first loop in the
+     * loop stack is the master loop; the length of every other loop is snapped to
+     * an integer multiple or fraction of its length, and every loop plays in phase
+     * with it.
+     *
+     * @param time time to stop recording at, in nanoseconds on the playback timeline
+     */
+    private void stop(final long time)
+    {
+        if (!loops.empty())
+        {
+            Loop current = loops.peek();
+            boolean wasRecording = current.isRecording();
+            if (wasRecording)
+            {
+                // input must stop writing to the loop before it ends the notes still held
+                dispatcher.setRecording(null);
+            }
+            current.stop(time);
+            if (wasRecording)
+            {
+                Loop master = loops.firstElement();
+                current.arrange((master == current) ? null : master, quantize);
+            }
+            play(current, time);
+            if (wasRecording)
+            {
+                bounceOverThreshold(time);
+            }
         }
     }
 }
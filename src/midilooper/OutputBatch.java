@@ -0,0 +1,363 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import rwmidi.MidiEvent;
+
+/**
+ * Output port that collects the messages sent while the scheduler dispatches
+ * the events due at one time, and sends them to another output port in a single
+ * pass when the scheduler flushes it.
+ *
+ * <p>
+ * Messages are kept in the order they were sent, which is the order of their due
+ * times, each with the timestamp set when it was sent.  A controller change
+ * overwritten by a later value for the same channel and controller and with the
+ * same timestamp within the batch is dropped, so only the last value is sent.
+ * Timestamps are passed on only to a timestamped output port.  The batch is sent
+ * holding the lock of the output port, so that input played through to the same
+ * port from another thread is not interleaved with it.  The notes left sounding
+ * by the messages sent are tracked, so that a note off can be sent for each of
+ * them when playback shuts down.  A full batch is flushed early rather than
+ * grown, so a burst of late events while the scheduler catches up never
+ * allocates.  Only the scheduler thread may send to or flush a batch.
+ * </p>
+ */
+final class OutputBatch implements OutputPort
+{
+    /** Marker for a message dropped from the batch. */
+    private static final int DROPPED = -1;
+
+    /** Capacity of the batch. */
+    private static final int CAPACITY = 256;
+
+    /** Output port the batch is sent to. */
+    private final OutputPort target;
+
+    /**
+     * Output port the batch is sent to, if it plays messages at their timestamps,
+     * otherwise <code>null</code>.
+     */
+    private final TimestampedOutputPort timestamped;
+
+    /** Packed messages, in the order they were sent. */
+    private final int[] messages = new int[CAPACITY];
+
+    /** Timestamps, by index of the message in the batch. */
+    private final long[] timeStamps = new long[CAPACITY];
+
+    /** Timestamp of the messages sent from now on. */
+    private long timeStamp = TimestampedOutputPort.IMMEDIATELY;
+
+    /** Latest timestamp set, no earlier than that of any message sent. */
+    private long latestTimeStamp = TimestampedOutputPort.IMMEDIATELY;
+
+    /** Sysex message data, by index of the message in the batch. */
+    private final byte[][] sysexData = new byte[CAPACITY][];
+
+    /** Sysex message offsets, by index of the message in the batch. */
+    private final int[] sysexOffsets = new int[CAPACITY];
+
+    /** Sysex message lengths, by index of the message in the batch. */
+    private final int[] sysexLengths = new int[CAPACITY];
+
+    /**
+     * Index plus one of the pending controller change in the batch, by channel and
+     * controller number.
+     */
+    private final int[] controllers = new int[16 * 128];
+
+    /** Number of messages in the batch. */
+    private int size = 0;
+
+    /** Notes left sounding by the messages sent to the target output port. */
+    private final ActiveNotes notes = new ActiveNotes();
+
+    /** Number of controller changes dropped because they were overwritten within a batch. */
+    private volatile long coalesced = 0L;
+
+    /** Number of messages sent to the target output port. */
+    private volatile long sent = 0L;
+
+    /** Time taken by the target output port to send each message. */
+    private final LatencyHistogram sendTimes = new LatencyHistogram();
+
+
+    /**
+     * Create a new output batch for the specified output port.
+     *
+     * @param target output port the batch is sent to, must not be null
+     */
+    OutputBatch(final OutputPort target)
+    {
+        if (target == null)
+        {
+            throw new IllegalArgumentException("target must not be null");
+        }
+        this.target = target;
+        boolean isTimestamped = (target instanceof TimestampedOutputPort)
+            && ((TimestampedOutputPort) target).isTimestamped();
+        timestamped = isTimestamped ? (TimestampedOutputPort) target : null;
+    }
+
+
+    /** {@inheritDoc} */
+    public void sendNoteOn(final int channel, final int pitch, final int velocity)
+    {
+        append(EventBuffer.pack(MidiEvent.NOTE_ON | channel, pitch, velocity));
+    }
+
+    /** {@inheritDoc} */
+    public void sendNoteOff(final int channel, final int pitch, final int velocity)
+    {
+        append(EventBuffer.pack(MidiEvent.NOTE_OFF | channel, pitch, velocity));
+    }
+
+    /** {@inheritDoc} */
+    public void sendController(final int channel, final int controller, final int value)
+    {
+        int key = ((channel & 0x0F) << 7) | (controller & 0x7F);
+        int pending = controllers[key];
+        if ((pending > 0) && (timeStamps[pending - 1] == timeStamp))
+        {
+            messages[pending - 1] = DROPPED;
+            coalesced++;
+        }
+        append(EventBuffer.pack(MidiEvent.CONTROL_CHANGE | channel, controller, value));
+        controllers[key] = size;
+    }
+
+    /** {@inheritDoc} */
+    public void sendProgramChange(final int channel, final int program)
+    {
+        append(EventBuffer.pack(MidiEvent.PROGRAM_CHANGE | channel, program, 0));
+    }
+
+    /** {@inheritDoc} */
+    public void sendSysex(final byte[] data, final int offset, final int length)
+    {
+        append(EventBuffer.SYSEX);
+        sysexData[size - 1] = data;
+        sysexOffsets[size - 1] = offset;
+        sysexLengths[size - 1] = length;
+    }
+
+    /**
+     * Append the specified packed message to the batch, flushing the batch first if it is full.
+     *
+     * @param message packed message
+     */
+    private void append(final int message)
+    {
+        if (size == CAPACITY)
+        {
+            flush();
+        }
+        messages[size] = message;
+        timeStamps[size] = timeStamp;
+        size++;
+    }
+
+    /**
+     * Set the timestamp of the messages sent to the batch from now on.
+     *
+     * @param timeStamp timestamp, in nanoseconds of <code>System.nanoTime()</code>,
+     *    or <code>TimestampedOutputPort.IMMEDIATELY</code>
+     */
+    void setTimeStamp(final long timeStamp)
+    {
+        this.timeStamp = timeStamp;
+        if (timeStamp > latestTimeStamp)
+        {
+            latestTimeStamp = timeStamp;
+        }
+    }
+
+    /**
+     * Set the timestamp of the messages sent to the batch from now on to the latest
+     * timestamp set, so that they play no earlier than any message already sent,
+     * including those sent ahead of time.
+     */
+    void setLatestTimeStamp()
+    {
+        timeStamp = latestTimeStamp;
+    }
+
+    /**
+     * Return true if the output port the batch is sent to plays messages at their timestamps.
+     *
+     * @return true if the output port the batch is sent to plays messages at their timestamps
+     */
+    boolean isTimestamped()
+    {
+        return timestamped != null;
+    }
+
+    /**
+     * Send the messages in the batch to the target output port, in order, and clear the
+     * batch, even if the target output port fails to send a message.  A timestamped
+     * target output port is left playing messages immediately, so that messages sent to
+     * it outside of the batch, such as those played through from the input, do not pick
+     * up the timestamp of the last message in the batch.
+     */
+    void flush()
+    {
+        if (size == 0)
+        {
+            return;
+        }
+        try
+        {
+            synchronized (target)
+            {
+                send();
+                if (timestamped != null)
+                {
+                    timestamped.setTimeStamp(TimestampedOutputPort.IMMEDIATELY);
+                }
+            }
+        }
+        finally
+        {
+            // messages left unsent if the target failed must not be coalesced with later ones
+            for (int i = 0; i < size; i++)
+            {
+                int message = messages[i];
+                int status = EventBuffer.status(message);
+                if ((message != DROPPED) && ((status & 0xF0) == MidiEvent.CONTROL_CHANGE))
+                {
+                    controllers[((status & 0x0F) << 7) | EventBuffer.data1(message)] = 0;
+                }
+                sysexData[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Send the messages in the batch to the target output port, in order.
+     */
+    private void send()
+    {
+        long time = System.nanoTime();
+        for (int i = 0; i < size; i++)
+        {
+            int message = messages[i];
+            if (message == DROPPED)
+            {
+                continue;
+            }
+            if (timestamped != null)
+            {
+                timestamped.setTimeStamp(timeStamps[i]);
+            }
+            int status = EventBuffer.status(message);
+            int channel = status & 0x0F;
+            int data1 = EventBuffer.data1(message);
+            int data2 = EventBuffer.data2(message);
+            switch (status & 0xF0)
+            {
+            case MidiEvent.NOTE_ON:
+                notes.update(status, data1, data2);
+                target.sendNoteOn(channel, data1, data2);
+                break;
+            case MidiEvent.NOTE_OFF:
+                notes.update(status, data1, data2);
+                target.sendNoteOff(channel, data1, data2);
+                break;
+            case MidiEvent.CONTROL_CHANGE:
+                controllers[(channel << 7) | data1] = 0;
+                target.sendController(channel, data1, data2);
+                break;
+            case MidiEvent.PROGRAM_CHANGE:
+                target.sendProgramChange(channel, data1);
+                break;
+            case MidiEvent.SYSEX_START:
+                target.sendSysex(sysexData[i], sysexOffsets[i], sysexLengths[i]);
+                sysexData[i] = null;
+                break;
+            default:
+                break;
+            }
+            long now = System.nanoTime();
+            sendTimes.record(now - time);
+            time = now;
+            sent++;
+        }
+    }
+
+    /**
+     * Flush the batch, then send a note off for every note left sounding on the
+     * target output port, in one batch, timestamped to play no earlier than any
+     * message already sent.
+     */
+    void releaseNotes()
+    {
+        flush();
+        setLatestTimeStamp();
+        notes.release(this);
+        flush();
+    }
+
+    /**
+     * Return the number of messages waiting in the batch.
+     *
+     * @return the number of messages waiting in the batch
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Return the number of controller changes dropped because they were overwritten
+     * within a batch.
+     *
+     * @return the number of controller changes dropped because they were overwritten
+     *    within a batch
+     */
+    long getCoalesced()
+    {
+        return coalesced;
+    }
+
+    /**
+     * Return the number of messages sent to the target output port.
+     *
+     * @return the number of messages sent to the target output port
+     */
+    long getSent()
+    {
+        return sent;
+    }
+
+    /**
+     * Return the histogram of the time taken by the target output port to send each message.
+     *
+     * @return the histogram of the time taken by the target output port to send each message
+     */
+    LatencyHistogram getSendTimes()
+    {
+        return sendTimes;
+    }
+}
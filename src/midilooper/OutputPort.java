@@ -0,0 +1,76 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * MIDI output port.  Implement this interface to play loops to a MIDI backend
+ * other than rwmidi or <code>javax.sound.midi</code>.  Loops send to an output
+ * port only from the playback scheduler thread.
+ */
+public interface OutputPort
+{
+
+    /**
+     * Send a note on message.
+     *
+     * @param channel channel
+     * @param pitch pitch
+     * @param velocity velocity
+     */
+    void sendNoteOn(int channel, int pitch, int velocity);
+
+    /**
+     * Send a note off message.
+     *
+     * @param channel channel
+     * @param pitch pitch
+     * @param velocity velocity
+     */
+    void sendNoteOff(int channel, int pitch, int velocity);
+
+    /**
+     * Send a controller change message.
+     *
+     * @param channel channel
+     * @param controller controller number
+     * @param value value
+     */
+    void sendController(int channel, int controller, int value);
+
+    /**
+     * Send a program change message.
+     *
+     * @param channel channel
+     * @param program program number
+     */
+    void sendProgramChange(int channel, int program);
+
+    /**
+     * Send a sysex message.
+     *
+     * @param data array containing the complete sysex message, including the leading <code>0xF0</code>
+     * @param offset offset of the sysex message in <code>data</code>
+     * @param length length of the sysex message
+     */
+    void sendSysex(byte[] data, int offset, int length);
+}
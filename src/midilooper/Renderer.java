@@ -0,0 +1,236 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+
+/**
+ * Offline renderer, playing copies of a stack of loops on a virtual clock as
+ * fast as the CPU allows.
+ *
+ * <p>
+ * The copies are dispatched by a scheduler of their own, through an output
+ * batch per track, exactly as the playback scheduler dispatches the loops, except that
+ * the clock jumps to each due time instead of waiting for it.  Ties between
+ * loops due at the same time are broken by creation order on both, so the
+ * rendered messages and their order are those of real-time playback that keeps
+ * up with the timeline.  Rendering starts at the origin of the master loop.
+ * The messages of all tracks are rendered together, after channel mapping.
+ * </p>
+ */
+final class Renderer
+{
+    /** Virtual clock. */
+    private final VirtualClock clock;
+
+    /** Scheduler of the copies of the loops. */
+    private final Scheduler scheduler = new Scheduler();
+
+    /** Port the rendered messages are collected by. */
+    private final CollectingOutputPort collector = new CollectingOutputPort();
+
+    /** Start of the render, in nanoseconds on the playback timeline. */
+    private final long start;
+
+    /** Position rendered up to, in nanoseconds from the start of the render. */
+    private long position = 0L;
+
+
+    /**
+     * Create a new renderer for the specified loops.  Loops that are recording are skipped.
+     *
+     * @param loops loops to render, master loop first, must not be null
+     * @param tracks tracks of the loops, in the order their output batches are flushed, must not be null
+     */
+    Renderer(final Loop[] loops, final Track[] tracks)
+    {
+        if (loops == null)
+        {
+            throw new IllegalArgumentException("loops must not be null");
+        }
+        if (tracks == null)
+        {
+            throw new IllegalArgumentException("tracks must not be null");
+        }
+        start = (loops.length == 0) ? 0L : loops[0].getOrigin();
+        clock = new VirtualClock(start);
+        scheduler.setTimeBase(clock);
+        Map<Track, OutputBatch> batches = new IdentityHashMap<Track, OutputBatch>();
+        for (Track track : tracks)
+        {
+            OutputBatch batch = new OutputBatch(collector);
+            scheduler.addBatch(batch);
+            batches.put(track, batch);
+        }
+        for (Loop loop : loops)
+        {
+            OutputBatch batch = batches.get(loop.getTrack());
+            if (batch == null)
+            {
+                batch = new OutputBatch(collector);
+                scheduler.addBatch(batch);
+                batches.put(loop.getTrack(), batch);
+            }
+            if (!loop.isRecording() && (loop.getLength() > 0L))
+            {
+                loop.copy(batch, scheduler).play(start);
+            }
+        }
+    }
+
+
+    /**
+     * Render the specified duration following what has been rendered so far.
+     *
+     * @param duration duration to render, in nanoseconds
+     * @return the rendered messages, with offsets in nanoseconds from the start of the render
+     */
+    EventBuffer render(final long duration)
+    {
+        EventBuffer events = new EventBuffer();
+        collector.events = events;
+        position += duration;
+        scheduler.runUntil(clock, start + position);
+        collector.events = null;
+        return events;
+    }
+
+    /**
+     * Render the specified duration following what has been rendered so far to the
+     * specified receiver, a second at a time, with timestamps in microseconds from
+     * the start of the render.
+     *
+     * @param duration duration to render, in nanoseconds
+     * @param receiver receiver to send the rendered messages to, must not be null
+     */
+    void render(final long duration, final Receiver receiver)
+    {
+        if (receiver == null)
+        {
+            throw new IllegalArgumentException("receiver must not be null");
+        }
+        long end = position + duration;
+        while (position < end)
+        {
+            long chunk = Math.min(1000000000L, end - position);
+            EventBuffer events = render(chunk);
+            for (int i = 0, size = events.size(); i < size; i++)
+            {
+                send(events, i, receiver);
+            }
+        }
+    }
+
+    /**
+     * Send the specified rendered message to the specified receiver.
+     *
+     * @param events rendered messages
+     * @param index index of the message to send
+     * @param receiver receiver
+     */
+    private static void send(final EventBuffer events, final int index, final Receiver receiver)
+    {
+        int message = events.message(index);
+        long timeStamp = events.offset(index) / 1000L;
+        try
+        {
+            if (EventBuffer.status(message) == EventBuffer.SYSEX)
+            {
+                int offset = events.sysexOffset(message);
+                int length = events.sysexLength(message);
+                byte[] data = new byte[length];
+                System.arraycopy(events.sysexData(), offset, data, 0, length);
+                receiver.send(new SysexMessage(data, length), timeStamp);
+            }
+            else
+            {
+                ShortMessage shortMessage = new ShortMessage();
+                shortMessage.setMessage(EventBuffer.status(message), EventBuffer.data1(message), EventBuffer.data2(message));
+                receiver.send(shortMessage, timeStamp);
+            }
+        }
+        catch (InvalidMidiDataException e)
+        {
+            // ignore
+        }
+    }
+
+
+    /**
+     * Output port that adds every message to an event buffer, at the position of the virtual clock.
+     */
+    private final class CollectingOutputPort implements OutputPort
+    {
+        /** Event buffer to add messages to. */
+        private EventBuffer events;
+
+
+        /**
+         * Add the specified short message.
+         *
+         * @param status status byte
+         * @param data1 first data byte
+         * @param data2 second data byte
+         */
+        private void add(final int status, final int data1, final int data2)
+        {
+            events.add(clock.now() - start, status, data1, data2);
+        }
+
+        /** {@inheritDoc} */
+        public void sendNoteOn(final int channel, final int pitch, final int velocity)
+        {
+            add(ShortMessage.NOTE_ON | channel, pitch, velocity);
+        }
+
+        /** {@inheritDoc} */
+        public void sendNoteOff(final int channel, final int pitch, final int velocity)
+        {
+            add(ShortMessage.NOTE_OFF | channel, pitch, velocity);
+        }
+
+        /** {@inheritDoc} */
+        public void sendController(final int channel, final int controller, final int value)
+        {
+            add(ShortMessage.CONTROL_CHANGE | channel, controller, value);
+        }
+
+        /** {@inheritDoc} */
+        public void sendProgramChange(final int channel, final int program)
+        {
+            add(ShortMessage.PROGRAM_CHANGE | channel, program, 0);
+        }
+
+        /** {@inheritDoc} */
+        public void sendSysex(final byte[] data, final int offset, final int length)
+        {
+            events.addSysex(clock.now() - start, data, offset, length);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.ConcurrentModificationException;
+
+import rwmidi.Controller;
+import rwmidi.MidiEvent;
+import rwmidi.MidiInput;
+import rwmidi.Note;
+import rwmidi.ProgramChange;
+import rwmidi.SysexMessage;
+
+/**
+ * Input port that receives from an rwmidi MIDI input.
+ *
+ * <p>
+ * rwmidi calls the public callback methods of this class by reflection, with a
+ * new object for every message, and drops real-time messages.
+ * </p>
+ */
+public final class RwmidiInputPort extends AbstractInputPort
+{
+    /** Number of callback methods plugged into the MIDI input, one for each callback of this class. */
+    private static final int CALLBACKS = 5;
+
+    /** MIDI input. */
+    private final MidiInput input;
+
+
+    /**
+     * Create a new input port for the specified MIDI input.
+     *
+     * @param input MIDI input, must not be null
+     */
+    public RwmidiInputPort(final MidiInput input)
+    {
+        if (input == null)
+        {
+            throw new IllegalArgumentException("input must not be null");
+        }
+        this.input = input;
+        input.plug(this);
+    }
+
+
+    /**
+     * Unplug this port from its MIDI input, so that it receives no more messages
+     * and is no longer referenced by the MIDI input.
+     */
+    public void close()
+    {
+        // rwmidi unplugs while iterating over its plugs, so each call removes at most one before failing
+        for (int i = 0; i < CALLBACKS; i++)
+        {
+            try
+            {
+                input.unplug(this);
+            }
+            catch (ConcurrentModificationException e)
+            {
+                // one callback unplugged
+            }
+        }
+    }
+
+
+    /**
+     * Note on callback.
+     *
+     * @param note note
+     */
+    public void noteOnReceived(final Note note)
+    {
+        fireShortMessage(MidiEvent.NOTE_ON | note.getChannel(), note.getPitch(), note.getVelocity());
+    }
+
+    /**
+     * Note off callback.
+     *
+     * @param note note
+     */
+    public void noteOffReceived(final Note note)
+    {
+        fireShortMessage(MidiEvent.NOTE_OFF | note.getChannel(), note.getPitch(), note.getVelocity());
+    }
+
+    /**
+     * Controller change callback.
+     *
+     * @param controller controller
+     */
+    public void controllerChangeReceived(final Controller controller)
+    {
+        fireShortMessage(MidiEvent.CONTROL_CHANGE | controller.getChannel(), controller.getCC(), controller.getValue());
+    }
+
+    /**
+     * Program change callback.
+     *
+     * @param programChange program change
+     */
+    public void programChangeReceived(final ProgramChange programChange)
+    {
+        fireShortMessage(MidiEvent.PROGRAM_CHANGE | programChange.getChannel(), programChange.getNumber(), 0);
+    }
+
+    /**
+     * Sysex callback.
+     *
+     * @param sysexMessage sysex message
+     */
+    public void sysexReceived(final SysexMessage sysexMessage)
+    {
+        byte[] data = sysexMessage.getMessage();
+        fireSysex(data, 0, data.length);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.Arrays;
+
+import rwmidi.MidiOutput;
+
+/**
+ * Output port that sends to an rwmidi MIDI output.
+ *
+ * <p>
+ * Note rwmidi allocates a new message for every send, sysex messages are
+ * copied to an array of their exact length, and program changes are always
+ * sent on channel 0; use {@link JavaxOutputPort} to send them on other channels.
+ * </p>
+ */
+public final class RwmidiOutputPort implements OutputPort
+{
+    /** MIDI output. */
+    private final MidiOutput output;
+
+
+    /**
+     * Create a new output port for the specified MIDI output.
+     *
+     * @param output MIDI output, must not be null
+     */
+    public RwmidiOutputPort(final MidiOutput output)
+    {
+        if (output == null)
+        {
+            throw new IllegalArgumentException("output must not be null");
+        }
+        this.output = output;
+    }
+
+
+    /** {@inheritDoc} */
+    public void sendNoteOn(final int channel, final int pitch, final int velocity)
+    {
+        output.sendNoteOn(channel, pitch, velocity);
+    }
+
+    /** {@inheritDoc} */
+    public void sendNoteOff(final int channel, final int pitch, final int velocity)
+    {
+        output.sendNoteOff(channel, pitch, velocity);
+    }
+
+    /** {@inheritDoc} */
+    public void sendController(final int channel, final int controller, final int value)
+    {
+        output.sendController(channel, controller, value);
+    }
+
+    /** {@inheritDoc} */
+    public void sendProgramChange(final int channel, final int program)
+    {
+        output.sendProgramChange(program);
+    }
+
+    /** {@inheritDoc} */
+    public void sendSysex(final byte[] data, final int offset, final int length)
+    {
+        output.sendSysex(Arrays.copyOfRange(data, offset, offset + length));
+    }
+}
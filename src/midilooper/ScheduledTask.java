@@ -0,0 +1,79 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task scheduled on the playback timeline by a scheduler.
+ */
+abstract class ScheduledTask
+{
+    /**
+     * Next due time returned by a task with nothing further to dispatch.  Positions on
+     * the playback timeline are <code>System.nanoTime()</code> values, which may be
+     * negative, so no other value is reserved.
+     */
+    static final long UNSCHEDULE = Long.MIN_VALUE;
+
+    /** Sequence of task creation order. */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /** Creation order, breaking ties between tasks due at the same time so dispatch order is deterministic. */
+    final long order = SEQUENCE.getAndIncrement();
+
+    /** Due time of the next dispatch in nanoseconds, guarded by the scheduler lock. */
+    long due;
+
+    /** Time to dispatch at in nanoseconds, the due time less any lookahead, guarded by the scheduler lock. */
+    long wake;
+
+    /** True if this task is queued for dispatch, guarded by the scheduler lock. */
+    boolean scheduled;
+
+    /** True if the scheduler is dispatching this task, guarded by the scheduler lock. */
+    boolean dispatching;
+
+
+    /**
+     * Dispatch this task at the specified due time and return the due time of
+     * its next dispatch.  Called only by the scheduler thread.
+     *
+     * @param due due time of this dispatch, in nanoseconds on the playback timeline
+     * @return the due time of the next dispatch in nanoseconds, or <code>UNSCHEDULE</code>
+     *    if this task has nothing further to dispatch
+     */
+    abstract long dispatch(long due);
+
+    /**
+     * Return true if this task sends only to output ports that play messages at
+     * their timestamps, so that it may be dispatched ahead of its due time.
+     * Defaults to false.
+     *
+     * @return true if this task sends only to output ports that play messages at their timestamps
+     */
+    boolean isTimestamped()
+    {
+        return false;
+    }
+}
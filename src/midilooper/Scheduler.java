@@ -0,0 +1,518 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Playback scheduler, shared by all the loops of a MIDI looper.
+ *
+ * <p>
+ * Playing loops, and other scheduled tasks such as the MIDI clock generator,
+ * are kept in a priority queue ordered by the absolute due time, in nanoseconds
+ * on the playback timeline, of their next event.  A single high-priority thread
+ * waits for the earliest deadline, dispatches the events due at that time, and
+ * requeues the task at its next deadline.  Once no more tasks are due, the
+ * messages the tasks sent to output batches are flushed to their output ports
+ * in one pass, before the thread parks again.  The time base
+ * maps the timeline to <code>System.nanoTime()</code>, either directly or by
+ * following an external clock.
+ * </p>
+ *
+ * <p>
+ * With a lookahead, tasks that send only to timestamped output ports are
+ * dispatched up to the lookahead before they are due, and their messages are
+ * sent with the time they are due as a timestamp, so that the device rather
+ * than this thread decides when they are played.  Other tasks are still
+ * dispatched when they are due.
+ * </p>
+ *
+ * <p>
+ * Nothing on the dispatch path allocates once the queue has grown to the
+ * number of playing loops; the scheduler thread parks until the next deadline
+ * rather than waiting on a condition, and is unparked when the queue changes.
+ * </p>
+ */
+final class Scheduler implements Runnable
+{
+    /** Queue of scheduled tasks, ordered by due time, also used as the lock for scheduled state. */
+    private final PriorityQueue<ScheduledTask> queue = new PriorityQueue<ScheduledTask>(16, new DueTimeComparator());
+
+    /** Scheduler thread. */
+    private final Thread thread;
+
+    /** Time base for the playback timeline. */
+    private volatile TimeBase timeBase = TimeBase.SYSTEM;
+
+    /** Output batches flushed once the tasks due at one time have been dispatched. */
+    private volatile OutputBatch[] batches = new OutputBatch[0];
+
+    /** True if this scheduler is running. */
+    private volatile boolean running;
+
+    /** Lookahead for timestamped tasks, in nanoseconds. */
+    private volatile long lookahead = 0L;
+
+    /** Lateness of each dispatch, written only by the scheduler thread. */
+    private final LatencyHistogram lateness = new LatencyHistogram();
+
+
+    /**
+     * Create a new scheduler.
+     */
+    Scheduler()
+    {
+        thread = new Thread(this, "midilooper-scheduler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+
+    /**
+     * Start the scheduler thread.
+     */
+    void start()
+    {
+        synchronized (queue)
+        {
+            if (!running)
+            {
+                running = true;
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stop the scheduler thread and unschedule all tasks, waiting for the thread to
+     * finish the task it is dispatching, if any.  Output batches are not flushed.
+     */
+    void shutdown()
+    {
+        synchronized (queue)
+        {
+            running = false;
+            for (ScheduledTask task : queue)
+            {
+                task.scheduled = false;
+            }
+            queue.clear();
+        }
+        LockSupport.unpark(thread);
+        if (thread.isAlive() && (thread != Thread.currentThread()))
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Schedule the specified task, starting at the specified due time.
+     *
+     * @param task task to schedule, must not be null
+     * @param due due time of the first dispatch, in nanoseconds on the playback timeline
+     */
+    void schedule(final ScheduledTask task, final long due)
+    {
+        if (task == null)
+        {
+            throw new IllegalArgumentException("task must not be null");
+        }
+        synchronized (queue)
+        {
+            if (task.scheduled)
+            {
+                queue.remove(task);
+            }
+            task.due = due;
+            task.wake = wakeOf(task, due);
+            task.scheduled = true;
+            queue.add(task);
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Unschedule the specified task.  Once this method returns, the specified
+     * task will not be dispatched again until it is rescheduled.
+     *
+     * @param task task to unschedule
+     */
+    void cancel(final ScheduledTask task)
+    {
+        boolean interrupted = false;
+        synchronized (queue)
+        {
+            if (task.scheduled)
+            {
+                task.scheduled = false;
+                queue.remove(task);
+            }
+            while (task.dispatching)
+            {
+                try
+                {
+                    queue.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Add the specified output batch, to be flushed once the tasks due at one
+     * time have been dispatched.  Tasks must only send to the batch from this
+     * scheduler.
+     *
+     * @param batch output batch to add, must not be null
+     */
+    void addBatch(final OutputBatch batch)
+    {
+        if (batch == null)
+        {
+            throw new IllegalArgumentException("batch must not be null");
+        }
+        synchronized (queue)
+        {
+            OutputBatch[] added = Arrays.copyOf(batches, batches.length + 1);
+            added[batches.length] = batch;
+            batches = added;
+        }
+    }
+
+    /**
+     * Return the time to dispatch the specified task at, the specified due time
+     * less the lookahead if the task is timestamped.
+     *
+     * @param task task
+     * @param due due time, in nanoseconds on the playback timeline
+     * @return the time to dispatch the specified task at, in nanoseconds on the playback timeline
+     */
+    private long wakeOf(final ScheduledTask task, final long due)
+    {
+        return task.isTimestamped() ? (due - lookahead) : due;
+    }
+
+    /**
+     * Return the lookahead for tasks that send only to timestamped output ports.
+     *
+     * @return the lookahead for tasks that send only to timestamped output ports, in nanoseconds
+     */
+    long getLookahead()
+    {
+        return lookahead;
+    }
+
+    /**
+     * Set the lookahead for tasks that send only to timestamped output ports.
+     * Takes effect as each task is next queued.
+     *
+     * @param lookahead lookahead, in nanoseconds, must be at least zero
+     */
+    void setLookahead(final long lookahead)
+    {
+        if (lookahead < 0L)
+        {
+            throw new IllegalArgumentException("lookahead must be at least zero");
+        }
+        this.lookahead = lookahead;
+    }
+
+    /**
+     * Return the number of tasks currently scheduled.
+     *
+     * @return the number of tasks currently scheduled
+     */
+    int size()
+    {
+        synchronized (queue)
+        {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Return the current position on the playback timeline, in nanoseconds.
+     *
+     * @return the current position on the playback timeline, in nanoseconds
+     */
+    long now()
+    {
+        return timeBase.now();
+    }
+
+    /**
+     * Return the time base for the playback timeline.
+     *
+     * @return the time base for the playback timeline
+     */
+    TimeBase getTimeBase()
+    {
+        return timeBase;
+    }
+
+    /**
+     * Set the time base for the playback timeline.
+     *
+     * @param timeBase time base for the playback timeline, must not be null
+     */
+    void setTimeBase(final TimeBase timeBase)
+    {
+        if (timeBase == null)
+        {
+            throw new IllegalArgumentException("timeBase must not be null");
+        }
+        this.timeBase = timeBase;
+        wake();
+    }
+
+    /**
+     * Wake the scheduler thread to recompute the wait for the next deadline,
+     * for example after the time base has changed tempo.
+     */
+    void wake()
+    {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Return the histogram of the lateness of each dispatch, from the time the
+     * task was due to the time the scheduler thread took it from the queue.
+     *
+     * @return the histogram of the lateness of each dispatch
+     */
+    LatencyHistogram getLateness()
+    {
+        return lateness;
+    }
+
+    /**
+     * Return the scheduler thread.
+     *
+     * @return the scheduler thread
+     */
+    Thread getThread()
+    {
+        return thread;
+    }
+
+    /** {@inheritDoc} */
+    public void run()
+    {
+        while (running)
+        {
+            ScheduledTask task = null;
+            long delay = Long.MAX_VALUE;
+            synchronized (queue)
+            {
+                ScheduledTask head = queue.peek();
+                if (head != null)
+                {
+                    long target = timeBase.toNanoTime(head.wake);
+                    delay = (target == Long.MAX_VALUE) ? Long.MAX_VALUE : (target - System.nanoTime());
+                    if (delay <= 0L)
+                    {
+                        task = queue.poll();
+                        task.dispatching = true;
+                        lateness.record(-delay);
+                    }
+                }
+            }
+            if (task == null)
+            {
+                try
+                {
+                    flush();
+                }
+                catch (RuntimeException e)
+                {
+                    // drop the batch rather than lose the scheduler thread
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+                if (delay == Long.MAX_VALUE)
+                {
+                    LockSupport.park(this);
+                }
+                else
+                {
+                    LockSupport.parkNanos(this, delay);
+                }
+                continue;
+            }
+
+            long timeStamp = TimestampedOutputPort.IMMEDIATELY;
+            if (task.wake != task.due)
+            {
+                long target = timeBase.toNanoTime(task.due);
+                timeStamp = (target == Long.MAX_VALUE) ? TimestampedOutputPort.IMMEDIATELY : target;
+            }
+            setTimeStamp(timeStamp);
+            long next = ScheduledTask.UNSCHEDULE;
+            try
+            {
+                next = task.dispatch(task.due);
+            }
+            catch (RuntimeException e)
+            {
+                // unschedule the failing task rather than lose the scheduler thread
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+            finally
+            {
+                synchronized (queue)
+                {
+                    task.dispatching = false;
+                    if (task.scheduled)
+                    {
+                        if (next == ScheduledTask.UNSCHEDULE)
+                        {
+                            task.scheduled = false;
+                        }
+                        else
+                        {
+                            task.due = next;
+                            task.wake = wakeOf(task, next);
+                            queue.add(task);
+                        }
+                    }
+                    queue.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Dispatch every task due before the specified position on the calling thread,
+     * in the same order as the scheduler thread, advancing the specified virtual
+     * clock to the due time of each instead of waiting for it.  Output batches are
+     * flushed after the tasks due at each time, as the scheduler thread does when
+     * it keeps up with the timeline.  The scheduler thread must not be started.
+     *
+     * @param clock virtual clock, the time base of this scheduler, must not be null
+     * @param end end position, in nanoseconds on the playback timeline
+     */
+    void runUntil(final VirtualClock clock, final long end)
+    {
+        if (clock == null)
+        {
+            throw new IllegalArgumentException("clock must not be null");
+        }
+        if (running)
+        {
+            throw new IllegalStateException("runUntil must not be called while the scheduler thread is running");
+        }
+        synchronized (queue)
+        {
+            ScheduledTask task = queue.peek();
+            while ((task != null) && (task.due < end))
+            {
+                queue.poll();
+                long due = task.due;
+                clock.setTime(due);
+                long next = task.dispatch(due);
+                if (next == ScheduledTask.UNSCHEDULE)
+                {
+                    task.scheduled = false;
+                }
+                else
+                {
+                    task.due = next;
+                    task.wake = next;
+                    queue.add(task);
+                }
+                task = queue.peek();
+                if ((task == null) || (task.due != due))
+                {
+                    flush();
+                }
+            }
+        }
+        clock.setTime(end);
+    }
+
+    /**
+     * Set the timestamp of the messages sent to every output batch from now on.
+     *
+     * @param timeStamp timestamp, in nanoseconds of <code>System.nanoTime()</code>,
+     *    or <code>TimestampedOutputPort.IMMEDIATELY</code>
+     */
+    private void setTimeStamp(final long timeStamp)
+    {
+        OutputBatch[] batches = this.batches;
+        for (int i = 0; i < batches.length; i++)
+        {
+            batches[i].setTimeStamp(timeStamp);
+        }
+    }
+
+    /**
+     * Flush all output batches.
+     */
+    private void flush()
+    {
+        OutputBatch[] batches = this.batches;
+        for (int i = 0; i < batches.length; i++)
+        {
+            batches[i].flush();
+        }
+    }
+
+
+    /**
+     * Orders tasks by the time to dispatch them at, then by their due time, then by their creation order.
+     */
+    private static final class DueTimeComparator implements Comparator<ScheduledTask>
+    {
+
+        /** {@inheritDoc} */
+        public int compare(final ScheduledTask task0, final ScheduledTask task1)
+        {
+            if (task0.wake != task1.wake)
+            {
+                return (task0.wake < task1.wake) ? -1 : 1;
+            }
+            if (task0.due != task1.due)
+            {
+                return (task0.due < task1.due) ? -1 : 1;
+            }
+            return (task0.order < task1.order) ? -1 : ((task0.order == task1.order) ? 0 : 1);
+        }
+    }
+}
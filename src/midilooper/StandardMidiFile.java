@@ -0,0 +1,559 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Standard MIDI file, type 1, with a tempo track followed by one track per loop.
+ *
+ * <p>
+ * Files are written by streaming variable-length quantity encoded events
+ * straight from the event buffers of the loops through a buffered file channel,
+ * without building intermediate <code>javax.sound.midi.Sequence</code> objects.
+ * The end of track event of each loop track marks the length of the loop.
+ * </p>
+ */
+final class StandardMidiFile
+{
+    /** Ticks per quarter note. */
+    static final int DIVISION = 960;
+
+    /** Default length of a quarter note, in nanoseconds. */
+    static final long DEFAULT_QUARTER_LENGTH = 500000000L;
+
+    /** Buffer size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Length of a quarter note, in nanoseconds. */
+    private final long quarterLength;
+
+    /** Event buffers, one per track. */
+    private final List<EventBuffer> events;
+
+    /** Track lengths, in nanoseconds. */
+    private final List<Long> lengths;
+
+
+    /**
+     * Create a new standard MIDI file.
+     *
+     * @param quarterLength length of a quarter note, in nanoseconds
+     * @param events event buffers, one per track
+     * @param lengths track lengths, in nanoseconds
+     */
+    private StandardMidiFile(final long quarterLength, final List<EventBuffer> events, final List<Long> lengths)
+    {
+        this.quarterLength = quarterLength;
+        this.events = events;
+        this.lengths = lengths;
+    }
+
+
+    /**
+     * Return the length of a quarter note, in nanoseconds.
+     *
+     * @return the length of a quarter note, in nanoseconds
+     */
+    long getQuarterLength()
+    {
+        return quarterLength;
+    }
+
+    /**
+     * Return the number of loop tracks.
+     *
+     * @return the number of loop tracks
+     */
+    int size()
+    {
+        return events.size();
+    }
+
+    /**
+     * Return the events of the specified loop track.
+     *
+     * @param track loop track
+     * @return the events of the specified loop track
+     */
+    EventBuffer getEvents(final int track)
+    {
+        return events.get(track);
+    }
+
+    /**
+     * Return the length of the specified loop track, in nanoseconds.
+     *
+     * @param track loop track
+     * @return the length of the specified loop track, in nanoseconds
+     */
+    long getLength(final int track)
+    {
+        return lengths.get(track).longValue();
+    }
+
+    /**
+     * Write the specified loops to the specified file.
+     *
+     * @param loops loops to write, must not be null
+     * @param quarterLength length of a quarter note, in nanoseconds, must be greater than zero
+     * @param file file to write to, must not be null
+     * @throws IOException if an I/O error occurs
+     */
+    static void write(final List<Loop> loops, final long quarterLength, final File file) throws IOException
+    {
+        if (loops == null)
+        {
+            throw new IllegalArgumentException("loops must not be null");
+        }
+        if (quarterLength <= 0L)
+        {
+            throw new IllegalArgumentException("quarterLength must be greater than zero");
+        }
+        if (file == null)
+        {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            randomAccessFile.setLength(0L);
+            Writer writer = new Writer(randomAccessFile.getChannel(), quarterLength);
+            writer.header(1 + loops.size());
+            writer.tempoTrack();
+            for (Loop loop : loops)
+            {
+                writer.track(loop.getEvents(), loop.getLength());
+            }
+            writer.flush();
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Read the loop tracks of the specified file.
+     *
+     * @param file file to read, must not be null
+     * @return the loop tracks of the specified file
+     * @throws IOException if an I/O error occurs or the file is not a standard MIDI file
+     */
+    static StandardMidiFile read(final File file) throws IOException
+    {
+        if (file == null)
+        {
+            throw new IllegalArgumentException("file must not be null");
+        }
+        ByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && (channel.read(buffer) >= 0))
+            {
+                // empty
+            }
+            buffer.flip();
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+
+        if ((buffer.remaining() < 14) || (buffer.getInt() != 0x4D546864))
+        {
+            throw new IOException("not a standard MIDI file, missing MThd chunk");
+        }
+        int headerLength = buffer.getInt();
+        int headerEnd = buffer.position() + headerLength;
+        buffer.getShort(); // format
+        int trackCount = buffer.getShort() & 0xFFFF;
+        int division = buffer.getShort();
+        if (division <= 0)
+        {
+            throw new IOException("SMPTE time division is not supported");
+        }
+        buffer.position(headerEnd);
+
+        long quarterLength = DEFAULT_QUARTER_LENGTH;
+        List<EventBuffer> events = new ArrayList<EventBuffer>(trackCount);
+        List<Long> lengths = new ArrayList<Long>(trackCount);
+        for (int track = 0; (track < trackCount) && (buffer.remaining() >= 8); track++)
+        {
+            int type = buffer.getInt();
+            int length = buffer.getInt();
+            int end = buffer.position() + length;
+            if (type != 0x4D54726B)
+            {
+                buffer.position(end);
+                continue;
+            }
+            // the tempo track comes first, so the tempo is known before any loop track
+            EventBuffer trackEvents = new EventBuffer();
+            long tick = 0L;
+            int runningStatus = 0;
+            while (buffer.position() < end)
+            {
+                tick += readVlq(buffer);
+                long offset = (tick * quarterLength) / division;
+                int status = buffer.get(buffer.position()) & 0xFF;
+                if (status < 0x80)
+                {
+                    status = runningStatus;
+                }
+                else
+                {
+                    buffer.get();
+                }
+                if (status == 0xFF)
+                {
+                    int metaType = buffer.get() & 0xFF;
+                    int metaLength = (int) readVlq(buffer);
+                    if ((metaType == 0x51) && (metaLength == 3))
+                    {
+                        long tempo = ((buffer.get(buffer.position()) & 0xFF) << 16)
+                            | ((buffer.get(buffer.position() + 1) & 0xFF) << 8)
+                            | (buffer.get(buffer.position() + 2) & 0xFF);
+                        quarterLength = tempo * 1000L;
+                    }
+                    buffer.position(buffer.position() + metaLength);
+                    if (metaType == 0x2F)
+                    {
+                        break;
+                    }
+                }
+                else if (status == 0xF0)
+                {
+                    byte[] data = new byte[(int) readVlq(buffer) + 1];
+                    data[0] = (byte) 0xF0;
+                    buffer.get(data, 1, data.length - 1);
+                    trackEvents.addSysex(offset, data);
+                    runningStatus = 0;
+                }
+                else if (status == 0xF7)
+                {
+                    buffer.position(buffer.position() + (int) readVlq(buffer));
+                    runningStatus = 0;
+                }
+                else if (status >= 0x80)
+                {
+                    runningStatus = status;
+                    int data1 = buffer.get() & 0x7F;
+                    int data2 = 0;
+                    int command = status & 0xF0;
+                    if ((command != 0xC0) && (command != 0xD0))
+                    {
+                        data2 = buffer.get() & 0x7F;
+                    }
+                    trackEvents.add(offset, status, data1, data2);
+                }
+                else
+                {
+                    throw new IOException("invalid status byte " + status + " in track " + track);
+                }
+            }
+            buffer.position(end);
+
+            if (!trackEvents.isEmpty())
+            {
+                events.add(trackEvents);
+                lengths.add(Long.valueOf((tick * quarterLength) / division));
+            }
+        }
+        return new StandardMidiFile(quarterLength, events, lengths);
+    }
+
+    /**
+     * Read a variable-length quantity from the specified buffer.
+     *
+     * @param buffer buffer to read from
+     * @return the variable-length quantity read from the specified buffer
+     */
+    private static long readVlq(final ByteBuffer buffer)
+    {
+        long value = 0L;
+        int b;
+        do
+        {
+            b = buffer.get() & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+
+    /**
+     * Streaming writer.
+     */
+    private static final class Writer
+    {
+        /** File channel. */
+        private final FileChannel channel;
+
+        /** Buffer. */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /** Length of a quarter note, in nanoseconds. */
+        private final long quarterLength;
+
+        /** Position in the file of the buffer. */
+        private long position;
+
+
+        /**
+         * Create a new writer.
+         *
+         * @param channel file channel
+         * @param quarterLength length of a quarter note, in nanoseconds
+         */
+        Writer(final FileChannel channel, final long quarterLength)
+        {
+            this.channel = channel;
+            this.quarterLength = quarterLength;
+        }
+
+
+        /**
+         * Write the header chunk.
+         *
+         * @param tracks number of tracks
+         * @throws IOException if an I/O error occurs
+         */
+        void header(final int tracks) throws IOException
+        {
+            ensure(14);
+            buffer.putInt(0x4D546864);
+            buffer.putInt(6);
+            buffer.putShort((short) 1);
+            buffer.putShort((short) tracks);
+            buffer.putShort((short) DIVISION);
+        }
+
+        /**
+         * Write the tempo track.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        void tempoTrack() throws IOException
+        {
+            long start = startTrack();
+            long tempo = Math.min(0xFFFFFFL, quarterLength / 1000L);
+            ensure(11);
+            buffer.put((byte) 0x00);
+            buffer.put((byte) 0xFF);
+            buffer.put((byte) 0x51);
+            buffer.put((byte) 0x03);
+            buffer.put((byte) (tempo >>> 16));
+            buffer.put((byte) (tempo >>> 8));
+            buffer.put((byte) tempo);
+            endTrack(start, 0L);
+        }
+
+        /**
+         * Write a loop track.
+         *
+         * @param events events
+         * @param length loop length, in nanoseconds
+         * @throws IOException if an I/O error occurs
+         */
+        void track(final EventBuffer events, final long length) throws IOException
+        {
+            long start = startTrack();
+            long last = 0L;
+            int runningStatus = 0;
+            for (int i = 0, size = events.size(); i < size; i++)
+            {
+                long tick = toTicks(events.offset(i));
+                int message = events.message(i);
+                int status = EventBuffer.status(message);
+                ensure(12);
+                writeVlq(tick - last);
+                last = tick;
+                if (status == EventBuffer.SYSEX)
+                {
+                    int sysexLength = events.sysexLength(message);
+                    buffer.put((byte) 0xF0);
+                    writeVlq(sysexLength - 1);
+                    write(events.sysexData(), events.sysexOffset(message) + 1, sysexLength - 1);
+                    runningStatus = 0;
+                }
+                else
+                {
+                    if (status != runningStatus)
+                    {
+                        buffer.put((byte) status);
+                        runningStatus = status;
+                    }
+                    buffer.put((byte) EventBuffer.data1(message));
+                    int command = status & 0xF0;
+                    if ((command != 0xC0) && (command != 0xD0))
+                    {
+                        buffer.put((byte) EventBuffer.data2(message));
+                    }
+                }
+            }
+            endTrack(start, Math.max(0L, toTicks(length) - last));
+        }
+
+        /**
+         * Start a track chunk and return its position in the file.
+         *
+         * @return the position of the track chunk in the file
+         * @throws IOException if an I/O error occurs
+         */
+        private long startTrack() throws IOException
+        {
+            ensure(8);
+            long start = position + buffer.position();
+            buffer.putInt(0x4D54726B);
+            buffer.putInt(0);
+            return start;
+        }
+
+        /**
+         * End the track chunk at the specified position, with an end of track event
+         * after the specified delta, and fill in its length.
+         *
+         * @param start position of the track chunk in the file
+         * @param delta delta time of the end of track event, in ticks
+         * @throws IOException if an I/O error occurs
+         */
+        private void endTrack(final long start, final long delta) throws IOException
+        {
+            ensure(8);
+            writeVlq(delta);
+            buffer.put((byte) 0xFF);
+            buffer.put((byte) 0x2F);
+            buffer.put((byte) 0x00);
+            long end = position + buffer.position();
+            flush();
+            ByteBuffer length = ByteBuffer.allocate(4);
+            length.putInt(0, (int) (end - start - 8L));
+            channel.write(length, start + 4L);
+        }
+
+        /**
+         * Convert the specified offset to ticks.
+         *
+         * @param offset offset, in nanoseconds
+         * @return the specified offset converted to ticks
+         */
+        private long toTicks(final long offset)
+        {
+            return (offset * DIVISION + quarterLength / 2L) / quarterLength;
+        }
+
+        /**
+         * Write the specified variable-length quantity.
+         *
+         * @param value value, at most 28 bits
+         */
+        private void writeVlq(final long value)
+        {
+            long v = Math.max(0L, Math.min(0x0FFFFFFFL, value));
+            if (v >= 0x200000L)
+            {
+                buffer.put((byte) (0x80 | (v >>> 21)));
+            }
+            if (v >= 0x4000L)
+            {
+                buffer.put((byte) (0x80 | ((v >>> 14) & 0x7F)));
+            }
+            if (v >= 0x80L)
+            {
+                buffer.put((byte) (0x80 | ((v >>> 7) & 0x7F)));
+            }
+            buffer.put((byte) (v & 0x7F));
+        }
+
+        /**
+         * Write the specified bytes.
+         *
+         * @param data data
+         * @param offset offset
+         * @param length length
+         * @throws IOException if an I/O error occurs
+         */
+        private void write(final byte[] data, final int offset, final int length) throws IOException
+        {
+            if (length > buffer.remaining())
+            {
+                flush();
+            }
+            if (length > buffer.remaining())
+            {
+                ByteBuffer wrapped = ByteBuffer.wrap(data, offset, length);
+                while (wrapped.hasRemaining())
+                {
+                    position += channel.write(wrapped, position);
+                }
+            }
+            else
+            {
+                buffer.put(data, offset, length);
+            }
+        }
+
+        /**
+         * Ensure the buffer has at least the specified number of bytes remaining.
+         *
+         * @param bytes number of bytes
+         * @throws IOException if an I/O error occurs
+         */
+        private void ensure(final int bytes) throws IOException
+        {
+            if (buffer.remaining() < bytes)
+            {
+                flush();
+            }
+        }
+
+        /**
+         * Flush the buffer to the file channel.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Time base, mapping positions on the playback timeline to <code>System.nanoTime()</code>.
+ */
+interface TimeBase
+{
+    /** Time base that follows <code>System.nanoTime()</code> directly. */
+    TimeBase SYSTEM = new TimeBase()
+        {
+            /** {@inheritDoc} */
+            public long now()
+            {
+                return System.nanoTime();
+            }
+
+            /** {@inheritDoc} */
+            public long toNanoTime(final long position)
+            {
+                return position;
+            }
+        };
+
+
+    /**
+     * Return the current position on the timeline, in nanoseconds.
+     *
+     * @return the current position on the timeline, in nanoseconds
+     */
+    long now();
+
+    /**
+     * Return the <code>System.nanoTime()</code> at which the specified position on the
+     * timeline is expected to be reached, or <code>Long.MAX_VALUE</code> if the timeline
+     * is not currently advancing.
+     *
+     * @param position position on the timeline, in nanoseconds
+     * @return the <code>System.nanoTime()</code> at which the specified position is expected
+     *    to be reached, or <code>Long.MAX_VALUE</code> if the timeline is not currently advancing
+     */
+    long toNanoTime(long position);
+}
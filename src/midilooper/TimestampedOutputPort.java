@@ -0,0 +1,54 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Output port that can send messages ahead of time, to be played by the
+ * device at their timestamps.  Loops playing to a timestamped port are
+ * dispatched up to the lookahead of the MIDI looper before they are due,
+ * which keeps scheduling jitter and garbage collection pauses out of when
+ * their messages are played.
+ */
+public interface TimestampedOutputPort extends OutputPort
+{
+    /** Timestamp of messages to be played immediately. */
+    long IMMEDIATELY = Long.MIN_VALUE;
+
+
+    /**
+     * Return true if this port plays messages at their timestamps.  Must not change
+     * once the port has been created; if false, messages are sent just in time,
+     * without timestamps.
+     *
+     * @return true if this port plays messages at their timestamps
+     */
+    boolean isTimestamped();
+
+    /**
+     * Set the timestamp of the messages sent from now on.
+     *
+     * @param timeStamp time to play the messages at, in nanoseconds of <code>System.nanoTime()</code>,
+     *    or {@link #IMMEDIATELY} to play them immediately
+     */
+    void setTimeStamp(long timeStamp);
+}
@@ -0,0 +1,207 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+/**
+ * Track, routing the loops recorded on it to an output port.
+ *
+ * <p>
+ * A track records only the messages received on its input channels, and
+ * plays each message on the output channel mapped from the channel it was
+ * recorded on.  By default a track records on every input channel and plays
+ * every message on its output channel.  Every track of a MIDI looper is
+ * played by the same scheduler, on the same timeline.
+ * </p>
+ */
+public final class Track
+{
+    /** Number of MIDI channels. */
+    private static final int CHANNELS = 16;
+
+    /** Output port. */
+    private final OutputPort output;
+
+    /** Output batch, sending to the output port when the scheduler flushes it. */
+    private final OutputBatch batch;
+
+    /** Output channel by recorded channel, replaced rather than modified. */
+    private volatile int[] channels;
+
+    /** Bit mask of the input channels recorded. */
+    private volatile int inputChannels = 0xFFFF;
+
+    /** True once this track has been added to a MIDI looper. */
+    private boolean added = false;
+
+
+    /**
+     * Create a new track playing to the specified output port on the specified output channel.
+     *
+     * @param output output port, must not be null
+     * @param outputChannel output channel
+     */
+    public Track(final OutputPort output, final int outputChannel)
+    {
+        if (output == null)
+        {
+            throw new IllegalArgumentException("output must not be null");
+        }
+        this.output = output;
+        batch = new OutputBatch(output);
+        setOutputChannel(outputChannel);
+    }
+
+
+    /**
+     * Return the output port of this track.
+     *
+     * @return the output port of this track
+     */
+    public OutputPort getOutput()
+    {
+        return output;
+    }
+
+    /**
+     * Play messages recorded on every channel on the specified output channel.
+     *
+     * @param outputChannel output channel, between 0 and 15
+     */
+    public void setOutputChannel(final int outputChannel)
+    {
+        checkChannel(outputChannel, "outputChannel");
+        int[] mapped = new int[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++)
+        {
+            mapped[i] = outputChannel;
+        }
+        channels = mapped;
+    }
+
+    /**
+     * Play messages recorded on the specified channel on the specified output channel.
+     *
+     * @param channel recorded channel, between 0 and 15
+     * @param outputChannel output channel, between 0 and 15
+     */
+    public synchronized void mapChannel(final int channel, final int outputChannel)
+    {
+        checkChannel(channel, "channel");
+        checkChannel(outputChannel, "outputChannel");
+        int[] mapped = channels.clone();
+        mapped[channel] = outputChannel;
+        channels = mapped;
+    }
+
+    /**
+     * Return the output channel messages recorded on the specified channel are played on.
+     *
+     * @param channel recorded channel, between 0 and 15
+     * @return the output channel messages recorded on the specified channel are played on
+     */
+    public int getOutputChannel(final int channel)
+    {
+        return channels[channel & 0x0F];
+    }
+
+    /**
+     * Record only the messages received on the specified input channels.  Sysex
+     * messages, which have no channel, are always recorded.
+     *
+     * @param channels input channels, each between 0 and 15
+     */
+    public void setInputChannels(final int... channels)
+    {
+        if (channels == null)
+        {
+            throw new IllegalArgumentException("channels must not be null");
+        }
+        int mask = 0;
+        for (int channel : channels)
+        {
+            checkChannel(channel, "channel");
+            mask |= 1 << channel;
+        }
+        inputChannels = mask;
+    }
+
+    /**
+     * Return true if this track records messages received on the specified input channel.
+     *
+     * @param channel input channel, between 0 and 15
+     * @return true if this track records messages received on the specified input channel
+     */
+    public boolean isInputChannel(final int channel)
+    {
+        return (inputChannels & (1 << (channel & 0x0F))) != 0;
+    }
+
+    /**
+     * Return true if this track records the message with the specified status byte.
+     *
+     * @param status status byte
+     * @return true if this track records the message with the specified status byte
+     */
+    boolean accepts(final int status)
+    {
+        return (status >= EventBuffer.SYSEX) || isInputChannel(status & 0x0F);
+    }
+
+    /**
+     * Return the output batch of this track.
+     *
+     * @return the output batch of this track
+     */
+    OutputBatch getBatch()
+    {
+        return batch;
+    }
+
+    /**
+     * Mark this track as added to a MIDI looper.
+     *
+     * @throws IllegalStateException if this track has already been added to a MIDI looper
+     */
+    synchronized void added()
+    {
+        if (added)
+        {
+            throw new IllegalStateException("track has already been added to a looper");
+        }
+        added = true;
+    }
+
+    /**
+     * Check that the specified channel is a valid MIDI channel.
+     *
+     * @param channel channel
+     * @param name parameter name
+     */
+    private static void checkChannel(final int channel, final String name)
+    {
+        if ((channel < 0) || (channel >= CHANNELS))
+        {
+            throw new IllegalArgumentException(name + " must be between 0 and 15");
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+
+    MIDI looper library for Processing.
+    Copyright (c) 2010 held jointly by the individual authors.
+
+    This file is part of MIDI looper library for Processing.
+
+    MIDI looper library for Processing is free software: you can redistribute it and/or
+    modify it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    MIDI looper library for Processing is distributed in the hope that it will be
+    useful, but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with MIDI looper library for Processing.  If not, see
+    <http://www.gnu.org/licenses/>.
+
+*/
+package midilooper;
+
+import java.util.Arrays;
+
+/**
+ * Playback transform of a loop, applied to each event as it is dispatched.
+ *
+ * <p>
+ * A transform transposes notes, maps note on velocities through a curve, remaps
+ * output channels, scales controller values and stretches time, without changing the
+ * recorded events.  Every mapping is precomputed into a lookup table, so applying
+ * a transform costs an array lookup per byte and never allocates.  Transforms are
+ * immutable; the <code>with</code> methods return a new transform, which can
+ * replace the transform of a playing loop and takes effect from its next event.
+ * </p>
+ */
+public final class Transform
+{
+    /** Identity transform, playing events as they were recorded. */
+    public static final Transform IDENTITY = new Transform(0, 1.0d, 1.0d, identity(16), 1.0d, 1, 1);
+
+    /** Transpose, in semitones. */
+    private final int transpose;
+
+    /** Velocity scale. */
+    private final double velocityScale;
+
+    /** Velocity curve exponent. */
+    private final double velocityCurve;
+
+    /** Controller value scale. */
+    private final double controllerScale;
+
+    /** Numerator of the time stretch. */
+    private final int stretchNumerator;
+
+    /** Denominator of the time stretch. */
+    private final int stretchDenominator;
+
+    /** Transposed pitch by recorded pitch, or <code>-1</code> if out of range. */
+    private final int[] pitches;
+
+    /** Note on velocity by recorded velocity. */
+    private final int[] velocities;
+
+    /** Controller value by recorded value. */
+    private final int[] controllers;
+
+    /** Channel by output channel of the track. */
+    private final int[] channels;
+
+
+    /**
+     * Create a new transform.
+     *
+     * @param transpose transpose, in semitones
+     * @param velocityScale velocity scale
+     * @param velocityCurve velocity curve exponent
+     * @param channels channel by output channel of the track
+     * @param controllerScale controller value scale
+     * @param stretchNumerator numerator of the time stretch
+     * @param stretchDenominator denominator of the time stretch
+     */
+    private Transform(final int transpose, final double velocityScale, final double velocityCurve,
+                      final int[] channels, final double controllerScale, final int stretchNumerator,
+                      final int stretchDenominator)
+    {
+        this.transpose = transpose;
+        this.velocityScale = velocityScale;
+        this.velocityCurve = velocityCurve;
+        this.channels = channels;
+        this.controllerScale = controllerScale;
+        this.stretchNumerator = stretchNumerator;
+        this.stretchDenominator = stretchDenominator;
+
+        pitches = new int[128];
+        velocities = new int[128];
+        controllers = new int[128];
+        for (int i = 0; i < 128; i++)
+        {
+            int pitch = i + transpose;
+            pitches[i] = ((pitch < 0) || (pitch > 127)) ? -1 : pitch;
+            // zero velocity is a note off, and no other velocity may become one
+            velocities[i] = (i == 0) ? 0 : clamp((int) Math.round(127.0d * Math.pow(i / 127.0d, velocityCurve) * velocityScale), 1);
+            controllers[i] = clamp((int) Math.round(i * controllerScale), 0);
+        }
+    }
+
+
+    /**
+     * Return a copy of this transform transposing notes by the specified number of semitones.
+     * Notes transposed out of range are not played.
+     *
+     * @param transpose transpose, in semitones
+     * @return a copy of this transform transposing notes by the specified number of semitones
+     */
+    public Transform withTranspose(final int transpose)
+    {
+        return new Transform(transpose, velocityScale, velocityCurve, channels, controllerScale, stretchNumerator,
+                             stretchDenominator);
+    }
+
+    /**
+     * Return a copy of this transform mapping note on velocities through the specified
+     * curve, <code>127 * (velocity / 127)^curve * scale</code>, limited to between 1 and 127.
+     * A curve less than one raises soft notes and a curve greater than one lowers them.
+     *
+     * @param scale velocity scale, must be greater than zero
+     * @param curve velocity curve exponent, must be greater than zero
+     * @return a copy of this transform mapping note on velocities through the specified curve
+     */
+    public Transform withVelocity(final double scale, final double curve)
+    {
+        if (!(scale > 0.0d))
+        {
+            throw new IllegalArgumentException("scale must be greater than zero");
+        }
+        if (!(curve > 0.0d))
+        {
+            throw new IllegalArgumentException("curve must be greater than zero");
+        }
+        return new Transform(transpose, scale, curve, channels, controllerScale, stretchNumerator, stretchDenominator);
+    }
+
+    /**
+     * Return a copy of this transform playing events the track of the loop maps to
+     * the specified output channel on the specified channel instead.
+     *
+     * @param channel output channel of the track, between 0 and 15
+     * @param mapped channel to play the events on, between 0 and 15
+     * @return a copy of this transform playing events on the specified output channel on the specified channel
+     */
+    public Transform withChannel(final int channel, final int mapped)
+    {
+        if ((channel < 0) || (channel > 15))
+        {
+            throw new IllegalArgumentException("channel must be between 0 and 15");
+        }
+        if ((mapped < 0) || (mapped > 15))
+        {
+            throw new IllegalArgumentException("mapped must be between 0 and 15");
+        }
+        int[] remapped = channels.clone();
+        remapped[channel] = mapped;
+        return new Transform(transpose, velocityScale, velocityCurve, remapped, controllerScale, stretchNumerator,
+                             stretchDenominator);
+    }
+
+    /**
+     * Return a copy of this transform scaling controller values by the specified
+     * factor, limited to between 0 and 127.
+     *
+     * @param scale controller value scale, must be at least zero
+     * @return a copy of this transform scaling controller values by the specified factor
+     */
+    public Transform withControllerScale(final double scale)
+    {
+        if (!(scale >= 0.0d))
+        {
+            throw new IllegalArgumentException("scale must be at least zero");
+        }
+        return new Transform(transpose, velocityScale, velocityCurve, channels, scale, stretchNumerator,
+                             stretchDenominator);
+    }
+
+    /**
+     * Return a copy of this transform stretching time by <code>numerator / denominator</code>,
+     * for example <code>2, 1</code> for half time, playing the loop at half speed over twice
+     * its length, or <code>1, 2</code> for double time.  A stretched loop keeps its phase
+     * with the timeline, its cycles starting at multiples of its stretched length from the
+     * origin.
+     *
+     * @param numerator numerator of the time stretch, must be greater than zero
+     * @param denominator denominator of the time stretch, must be greater than zero
+     * @return a copy of this transform stretching time by <code>numerator / denominator</code>
+     */
+    public Transform withStretch(final int numerator, final int denominator)
+    {
+        if (numerator < 1)
+        {
+            throw new IllegalArgumentException("numerator must be greater than zero");
+        }
+        if (denominator < 1)
+        {
+            throw new IllegalArgumentException("denominator must be greater than zero");
+        }
+        return new Transform(transpose, velocityScale, velocityCurve, channels, controllerScale, numerator, denominator);
+    }
+
+    /**
+     * Return the transpose, in semitones.
+     *
+     * @return the transpose, in semitones
+     */
+    public int getTranspose()
+    {
+        return transpose;
+    }
+
+    /**
+     * Return the numerator of the time stretch.
+     *
+     * @return the numerator of the time stretch
+     */
+    public int getStretchNumerator()
+    {
+        return stretchNumerator;
+    }
+
+    /**
+     * Return the denominator of the time stretch.
+     *
+     * @return the denominator of the time stretch
+     */
+    public int getStretchDenominator()
+    {
+        return stretchDenominator;
+    }
+
+    /**
+     * Return true if this transform stretches time by the same amount as the specified transform.
+     *
+     * @param transform transform
+     * @return true if this transform stretches time by the same amount as the specified transform
+     */
+    boolean sameStretch(final Transform transform)
+    {
+        return (stretchNumerator == transform.stretchNumerator) && (stretchDenominator == transform.stretchDenominator);
+    }
+
+    /**
+     * Return the transposed pitch of the specified recorded pitch, or <code>-1</code> if out of range.
+     *
+     * @param pitch recorded pitch
+     * @return the transposed pitch of the specified recorded pitch, or <code>-1</code> if out of range
+     */
+    int pitch(final int pitch)
+    {
+        return pitches[pitch];
+    }
+
+    /**
+     * Return the note on velocity of the specified recorded velocity.
+     *
+     * @param velocity recorded velocity
+     * @return the note on velocity of the specified recorded velocity
+     */
+    int velocity(final int velocity)
+    {
+        return velocities[velocity];
+    }
+
+    /**
+     * Return the controller value of the specified recorded value.
+     *
+     * @param value recorded value
+     * @return the controller value of the specified recorded value
+     */
+    int controller(final int value)
+    {
+        return controllers[value];
+    }
+
+    /**
+     * Return the channel of the specified output channel of the track.
+     *
+     * @param channel output channel of the track
+     * @return the channel of the specified output channel of the track
+     */
+    int channel(final int channel)
+    {
+        return channels[channel];
+    }
+
+    /**
+     * Limit the specified value to between the specified minimum and 127.
+     *
+     * @param value value
+     * @param minimum minimum
+     * @return the specified value limited to between the specified minimum and 127
+     */
+    private static int clamp(final int value, final int minimum)
+    {
+        return Math.max(minimum, Math.min(127, value));
+    }
+
+    /**
+     * Return an identity map of the specified size.
+     *
+     * @param size size
+     * @return an identity map of the specified size
+     */
+    private static int[] identity(final int size)
+    {
+        int[] map = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            map[i] = i;
+        }
+        return map;
+    }
+
+    /** {@inheritDoc} */
+    public String toString()
+    {
+        return "Transform[transpose=" + transpose + ", velocity=" + velocityScale + "^" + velocityCurve
+            + ", channels=" + Arrays.toString(channels) + ", controllers=" + controllerScale
+            + ", stretch=" + stretchNumerator + "/" + stretchDenominator + "]";
+    }
+}
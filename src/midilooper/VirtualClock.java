@@ -23,41 +23,45 @@
 package midilooper;
 
 /**
- * Wait event.
+ * Virtual clock, a time base whose position is set explicitly rather than
+ * following <code>System.nanoTime()</code>, for rendering faster than real time.
  */
-class Wait implements Event
+final class VirtualClock implements TimeBase
 {
-    /** Delay in milliseconds. */
-    private final long delay;
+    /** Current position, in nanoseconds. */
+    private volatile long time;
 
 
     /**
-     * Create a new wait event with the specified delay in millieseconds.
+     * Create a new virtual clock at the specified position.
      *
-     * @param delay delay in milliseconds
+     * @param time position, in nanoseconds
      */
-    Wait(final long delay)
+    VirtualClock(final long time)
     {
-        this.delay = delay;
+        this.time = time;
     }
 
 
+    /**
+     * Set the current position of this virtual clock.
+     *
+     * @param time position, in nanoseconds
+     */
+    void setTime(final long time)
+    {
+        this.time = time;
+    }
+
     /** {@inheritDoc} */
-    public String toString()
+    public long now()
     {
-        return "W " + delay;
+        return time;
     }
 
     /** {@inheritDoc} */
-    public void run() 
+    public long toNanoTime(final long position)
     {
-        try
-        {
-            Thread.currentThread().sleep(delay);
-        }
-        catch (InterruptedException e)
-        {
-            // ignore
-        }
+        return position;
     }
 }